@@ -1,79 +1,162 @@
 package net.marcomichel.ed.converter;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashSet;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
 import net.marcomichel.ed.parser.CommandersLogParser;
+import net.marcomichel.ed.parser.JumpRecord;
+import net.marcomichel.ed.util.LongHashSet;
 
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 
+/**
+ * Wandelt das Commanders Log in den Footprint fr den Server um.<p>
+ *
+ * Knoten und Kanten werden geschrieben, sobald sie beim Parsen gefunden werden. Die Knoten gehen direkt in ein
+ * temporres File fr data.json, die Kanten in ein zweites. Am Ende wird das File der Kanten hinter die Knoten
+ * kopiert und das Ergebnis mit einem Rename zu data.json. Im Speicher bleiben nur die Mengen fr die Prfung
+ * auf Duplikate, nicht das ganze Dokument.<p>
+ *
+ * Jedes System bekommt beim ersten Auftreten eine int-ID. Eine Kante ist ungerichtet und wird als long aus
+ * kleinerer und grerer ID in einem {@link LongHashSet} gemerkt, so kostet sie keine eigenen Objekte.
+ */
 public class EventConverterStaxImpl extends CommandersLogParser {
 
 	private static final Logger log = Logger.getLogger(EventConverterStaxImpl.class.getName());
 
-	private HashSet<String> systems = new HashSet<String>();
-	private JSONArray systemList = new JSONArray();
-	private HashSet<Edge> edges = new HashSet<Edge>();
-	private JSONArray edgeList = new JSONArray();
+	private static final String OUTPUT_FILE = "data.json";
+
+	// ID 0 steht fr kein System, z.B. die Quelle des ersten Sprungs
+	private HashMap<String, Integer> systemIds = new HashMap<String, Integer>();
+	private int nextSystemId = 1;
+	private LongHashSet edges = new LongHashSet(1024);
 	private String quelle = null, ziel = null;
+	private int zielId = 0;
+
+	// die beiden Abschnitte des Footprints, whrend geparst wird
+	private Writer nodesOut;
+	private Writer edgesOut;
+	private boolean firstNode = true, firstEdge = true;
 
-	@SuppressWarnings("unchecked")
 	@Override
-	protected void onJumpedToEvent(String system, String eventid) {
-
-		if (!systems.contains(system)) {
-			systems.add(system);
-			JSONObject obj = new JSONObject();
-			obj.put("id", system);
-			obj.put("label", system);
-			obj.put("discovered", "ZERO SENSE");
-			systemList.add(obj);
-		}
+	protected void onJumpedToEvent(JumpRecord jump) {
+		final String system = jump.getSystem();
 
-		quelle = ziel;
-		ziel = system;
-
-		Edge edge = new Edge(quelle, ziel);
-		if (!edges.contains(edge)) {
-			edges.add(edge);
-			// Rckweg auch aufnehmen, dass diese Verbindung nur einmal aufgenommen wird
-			edges.add(new Edge(ziel, quelle));
-			JSONObject obj = new JSONObject();
-			obj.put("from", quelle);
-			obj.put("to", ziel);
-			obj.put("style", "line");
-			edgeList.add(obj);
+		try {
+			Integer systemId = systemIds.get(system);
+			if (systemId == null) {
+				systemId = system != null ? nextSystemId++ : 0;
+				systemIds.put(system, systemId);
+				nodesOut.write(firstNode ? "{" : ",{");
+				nodesOut.write("\"discovered\":\"ZERO SENSE\",\"id\":");
+				nodesOut.write(value(system));
+				nodesOut.write(",\"label\":");
+				nodesOut.write(value(system));
+				nodesOut.write('}');
+				firstNode = false;
+			}
+
+			final int quelleId = zielId;
+			quelle = ziel;
+			ziel = system;
+			zielId = systemId;
+
+			// Hin- und Rckweg haben den gleichen Schlssel, damit diese Verbindung nur einmal aufgenommen wird
+			if (edges.add(edgeKey(quelleId, zielId))) {
+				edgesOut.write(firstEdge ? "{" : ",{");
+				edgesOut.write("\"from\":");
+				edgesOut.write(value(quelle));
+				edgesOut.write(",\"style\":\"line\",\"to\":");
+				edgesOut.write(value(ziel));
+				edgesOut.write('}');
+				firstEdge = false;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
 	}
 
-	private void writeJsonObject(JSONObject json) throws Exception {
-		String jsonAsString = json.toJSONString();
-		Files.write(Paths.get("data.json"), jsonAsString.getBytes());
+	/**
+	 * @return Schlssel einer ungerichteten Kante, nie 0
+	 */
+	private static long edgeKey(int a, int b) {
+		final int min = Math.min(a, b);
+		final int max = Math.max(a, b);
+		return ((long) min << 32) | (max + 1L);
+	}
+
+	/**
+	 * @return der Wert als JSON, mit dem gleichen Escaping wie JSONObject
+	 */
+	private static String value(String s) {
+		return s == null ? "null" : "\"" + JSONValue.escape(s) + "\"";
+	}
+
+	private static Writer writer(OutputStream out) {
+		return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 16384);
+	}
+
+	private void writeFootprint(String logFile) throws IOException {
+		final Path target = Paths.get(OUTPUT_FILE).toAbsolutePath();
+		final Path nodesFile = Files.createTempFile(target.getParent(), OUTPUT_FILE, ".tmp");
+		final Path edgesFile = Files.createTempFile(target.getParent(), OUTPUT_FILE, ".edges.tmp");
+		try {
+			try (OutputStream nodesStream = new BufferedOutputStream(Files.newOutputStream(nodesFile));
+					Writer nodes = writer(nodesStream);
+					Writer edgesWriter = writer(Files.newOutputStream(edgesFile))) {
+				nodesOut = nodes;
+				edgesOut = edgesWriter;
+				nodes.write("{\"footprint\":{\"nodes\":[");
+				try {
+					parseLogFile(logFile);
+				} catch (UncheckedIOException e) {
+					throw e.getCause();
+				}
+				edgesWriter.flush();
+				// Abschnitt der Kanten hinter die Knoten kopieren
+				nodes.write("],\"edges\":[");
+				nodes.flush();
+				Files.copy(edgesFile, nodesStream);
+				nodes.write("]},\"teamid\":" + value("bb17fe71-5cef-4681-a7c8-c8d006e7b940")
+						+ ",\"name\":" + value("ZERO SENSE")
+						+ ",\"id\":" + value("e7884875-e908-32c6-ba43-cb0a10b5eb20")
+						+ ",\"email\":" + value("marco-michel@gmx.de") + "}");
+			} finally {
+				nodesOut = null;
+				edgesOut = null;
+			}
+			try {
+				Files.move(nodesFile, target, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(nodesFile, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(nodesFile);
+			Files.deleteIfExists(edgesFile);
+		}
 	}
 
-	@SuppressWarnings("unchecked")
 	public void convert() {
 		log.info("Start parsing...");
 		long ts = System.currentTimeMillis();
 		try {
-			parseLogFile("log1.xml");
-			JSONObject data = new JSONObject();
-			data.put("name", "ZERO SENSE");
-			data.put("email", "marco-michel@gmx.de");
-			data.put("id", "e7884875-e908-32c6-ba43-cb0a10b5eb20");
-			data.put("teamid", "bb17fe71-5cef-4681-a7c8-c8d006e7b940");
-			JSONObject footprint = new JSONObject();
-			footprint.put("nodes", systemList);
-			footprint.put("edges", edgeList);
-			data.put("footprint", footprint);
-			writeJsonObject(data);
+			writeFootprint("log1.xml");
 		} catch (Exception e) {
 			log.severe(e.toString());
 		}
@@ -1,15 +1,24 @@
 package net.marcomichel.ed.parser;
 
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.logging.Logger;
 
-import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.events.EndElement;
-import javax.xml.stream.events.StartElement;
-import javax.xml.stream.events.XMLEvent;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
+/**
+ * Liest das Commanders Log und meldet jeden Sprung als {@link JumpRecord}.<p>
+ *
+ * Das Log wird mit dem Cursor von StAX gelesen, es entstehen keine Objekte pro Token und der Speicherbedarf
+ * hngt nicht von der Gre des Logs ab.
+ *
+ * @author Marco Michel
+ */
 public abstract class CommandersLogParser {
 	private static final Logger log = Logger.getLogger(CommandersLogParser.class.getName());
 
@@ -18,64 +27,76 @@ public abstract class CommandersLogParser {
 	private static final String JUMPED_TO_EVENT 			= "Jumped To";
 	private static final String SYSTEM_TAG 					= "System";
 	private static final String EVENT_ID_TAG 				= "EventID";
-	
-	protected void parseLogFile(String file) throws Exception {
+	private static final String EVENT_DATE_TAG 				= "EventDate";
+
+	// Factory wird nur einmal ber den Service-Loader gesucht, createXMLStreamReader ist thread-safe
+	private static final XMLInputFactory xmlFactory = XMLInputFactory.newInstance();
+	static {
+		xmlFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		xmlFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	protected void parseLogFile(String file) throws IOException {
 		log.info("Parsing " + file);
-		// First, create a new XMLInputFactory
-	    XMLInputFactory inputFactory = XMLInputFactory.newInstance();
-	    // Setup a new eventReader
-	    InputStream in = new FileInputStream(file);
-	    XMLEventReader eventReader = inputFactory.createXMLEventReader(in);
-		String system = null, eventid = null, eventtype = null;
-		
-	    while (eventReader.hasNext()) {
-	    	XMLEvent event = eventReader.nextEvent();
+		try (InputStream in = Files.newInputStream(Paths.get(file))) {
+			final XMLStreamReader reader = xmlFactory.createXMLStreamReader(in);
+			try {
+				parse(reader);
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Error parsing " + file + ": " + e.getMessage(), e);
+		}
+	}
 
-	        if (event.isStartElement()) {
-	        	StartElement startElement = event.asStartElement();
-	        	
-	            if (startElement.getName().getLocalPart() == (COMMANDERS_LOG_EVENT_TAG)) {
-		        	  system    = null;
-		        	  eventid   = null;
-		        	  eventtype = null;
-	            }
-	                
-            	if (startElement.getName().getLocalPart() == (EVENT_TYPE_TAG)) {
-            		event = eventReader.nextEvent();
-            		if (event.getEventType() == XMLEvent.CHARACTERS && event.asCharacters().getData().equalsIgnoreCase(JUMPED_TO_EVENT)) {
-	                    eventtype = JUMPED_TO_EVENT;
-	                    continue;
-            		}
-                }
-            	
-            	if (startElement.getName().getLocalPart() == (SYSTEM_TAG)) {
-            		event = eventReader.nextEvent();
-            		if (event.getEventType() == XMLEvent.CHARACTERS) {	            			
-	                    system = event.asCharacters().getData();
-	                    continue;
-            		}
-            	}
+	private void parse(XMLStreamReader reader) throws XMLStreamException {
+		String system = null, eventid = null, eventdate = null;
+		boolean jump = false;
 
-            	if (startElement.getName().getLocalPart() == (EVENT_ID_TAG)) {
-            		event = eventReader.nextEvent();
-            		if (event.getEventType() == XMLEvent.CHARACTERS) {	            			
-	                    eventid = event.asCharacters().getData();
-	                    continue;
-            		}
-            	}
-	        }
-	        
-	        // If we reach the end of an item element, we call the onEvent-Methode
-	        if (event.isEndElement()) {
-	          EndElement endElement = event.asEndElement();
-	          if (endElement.getName().getLocalPart() == (COMMANDERS_LOG_EVENT_TAG) && eventtype == JUMPED_TO_EVENT) {
-	        	  onJumpedToEvent(system, eventid);
-	          }
-	        }
+		while (reader.hasNext()) {
+			final int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				// switch vergleicht erst den Hash, die Namen aus dem Reader sind interned und haben ihn schon berechnet
+				switch (reader.getLocalName()) {
+				case COMMANDERS_LOG_EVENT_TAG:
+					system    = null;
+					eventid   = null;
+					eventdate = null;
+					jump      = false;
+					break;
+				case EVENT_TYPE_TAG:
+					jump = JUMPED_TO_EVENT.equalsIgnoreCase(reader.getElementText());
+					break;
+				case SYSTEM_TAG:
+					system = text(reader);
+					break;
+				case EVENT_ID_TAG:
+					eventid = text(reader);
+					break;
+				case EVENT_DATE_TAG:
+					eventdate = text(reader);
+					break;
+				default:
+					break;
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT && jump
+					&& COMMANDERS_LOG_EVENT_TAG.equals(reader.getLocalName())) {
+				// Am Ende eines Events mit einem Sprung wird onJumpedToEvent aufgerufen
+				onJumpedToEvent(new JumpRecord(system, eventid, eventdate));
+				jump = false;
+			}
+		}
+	}
 
-	    }	            	
+	/**
+	 * @return Text des Elements, null wenn es leer ist
+	 */
+	private static String text(XMLStreamReader reader) throws XMLStreamException {
+		final String text = reader.getElementText();
+		return text.isEmpty() ? null : text;
 	}
 
-	protected abstract void onJumpedToEvent(String system, String eventid);
+	protected abstract void onJumpedToEvent(JumpRecord jump);
 
 }
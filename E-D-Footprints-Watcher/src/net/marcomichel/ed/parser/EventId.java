@@ -0,0 +1,50 @@
+package net.marcomichel.ed.parser;
+
+/**
+ * Erzeugt deterministische IDs fr Events.<p>
+ *
+ * Die ID eines Sprungs wird aus der Identitt des Log-Files ({@link StateJournal#fileIdentity(java.nio.file.Path)})
+ * und dem Byte-Offset der Zeile mit dem Systemeintrag berechnet. Wird die gleiche Zeile erneut gelesen, z.B. nach
+ * dem Verlust des State oder beim Nachladen alter Log-Files, bekommt der Sprung wieder die gleiche ID. Der Server
+ * und der Publisher knnen Duplikate damit erkennen.<p>
+ *
+ * Die ID ist ein 64 Bit Hash, 0 kommt nie vor.
+ *
+ * @author Marco Michel
+ */
+public final class EventId {
+
+	private EventId() {
+	}
+
+	/**
+	 * @param source Quelle des Events, z.B. die Identitt des Log-Files
+	 * @param position Position in der Quelle, z.B. der Byte-Offset der Zeile
+	 * @return die ID, nie 0
+	 */
+	public static long of(String source, long position) {
+		// FNV-1a ber die Quelle
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < source.length(); i++) {
+			h ^= source.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= position * 0x9e3779b97f4a7c15L;
+		// Finalizer von MurmurHash3, damit benachbarte Offsets weit auseinander liegen
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h != 0 ? h : 1;
+	}
+
+	/**
+	 * @param id die ID
+	 * @return die ID als 16 Hex-Ziffern, so wie sie im JSON steht
+	 */
+	public static String toString(long id) {
+		final String hex = Long.toHexString(id);
+		return "0000000000000000".substring(hex.length()) + hex;
+	}
+}
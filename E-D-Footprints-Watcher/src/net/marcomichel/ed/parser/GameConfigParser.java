@@ -1,116 +1,230 @@
 package net.marcomichel.ed.parser;
 
-import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.xml.sax.SAXException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 public class GameConfigParser {
 
 	private static final Logger log = Logger.getLogger(GameConfigParser.class.getName());
 
+	// Factory wird nur einmal ber den Service-Loader gesucht, createXMLStreamReader ist thread-safe
+	private static final XMLInputFactory xmlFactory = XMLInputFactory.newInstance();
+	static {
+		xmlFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		xmlFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	/**
+	 * Die Attribute des Elements Network aus der Game-Config, die der Watcher braucht.
+	 * Fehlt ein Attribut, ist der Wert leer bzw. false.
+	 */
+	public static final class NetworkConfig {
+		private final String logFileBaseName;
+		private final boolean verboseLogging;
+		private final boolean datestampLog;
+
+		NetworkConfig(String logFileBaseName, boolean verboseLogging, boolean datestampLog) {
+			this.logFileBaseName = logFileBaseName;
+			this.verboseLogging = verboseLogging;
+			this.datestampLog = datestampLog;
+		}
+
+		/** @return Basisname der Log-Files, Attribut LogFile */
+		public String getLogFileBaseName() {
+			return logFileBaseName;
+		}
+
+		/** @return true, wenn VerboseLogging auf 1 steht */
+		public boolean isVerboseLogging() {
+			return verboseLogging;
+		}
+
+		/** @return true, wenn die Namen der Log-Files einen Zeitstempel haben, Attribut DatestampLog */
+		public boolean isDatestampLog() {
+			return datestampLog;
+		}
+	}
+
+	// zuletzt gelesene Config und Stand des Files dabei
+	private static final class CachedConfig {
+		private final long modified;
+		private final long size;
+		private final NetworkConfig config;
+
+		CachedConfig(long modified, long size, NetworkConfig config) {
+			this.modified = modified;
+			this.size = size;
+			this.config = config;
+		}
+	}
+
 	private String file;
+	private volatile CachedConfig cached = null;
 
 	public GameConfigParser(String file) {
 		super();
 		this.file = file;
 	}
 
-	private Document parseGameConfig(String file) throws ParserConfigurationException, SAXException, IOException {
-		 DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		 DocumentBuilder builder = factory.newDocumentBuilder();
-		 Document document = builder.parse(file);
-		 return document;
-	}
-
-	private String getConfigValue(Document doc, String xpathExpr) throws XPathExpressionException {
-		XPath xPath = XPathFactory.newInstance().newXPath();
-		XPathExpression expr = xPath.compile(xpathExpr);
-		String attributeValue = (String) expr.evaluate(doc, XPathConstants.STRING);
-		return attributeValue;
+	/**
+	 * Liefert die Attribute des Elements Network. Das File wird nur neu gelesen, wenn sich nderungszeit
+	 * oder Gre seit dem letzten Lesen gendert haben.
+	 *
+	 * @return die Attribute des ersten Elements Network
+	 * @throws IOException wenn die Game-Config nicht gelesen werden kann
+	 */
+	public NetworkConfig getNetworkConfig() throws IOException {
+		final BasicFileAttributes attributes = Files.readAttributes(Paths.get(file), BasicFileAttributes.class);
+		final long modified = attributes.lastModifiedTime().toMillis();
+		final long size = attributes.size();
+		final CachedConfig current = cached;
+		if (current != null && current.modified == modified && current.size == size) {
+			return current.config;
+		}
+		final NetworkConfig config = readNetworkConfig();
+		cached = new CachedConfig(modified, size, config);
+		return config;
 	}
 
-	public String getLogFileBaseName() throws IOException {
-		try {
-			final Document doc = parseGameConfig(file);
-			final String baseName = getConfigValue(doc, "//Network/@LogFile");
-			log.fine("Log-File base name is " + baseName);
-			return baseName;
-		} catch (ParserConfigurationException | SAXException | XPathExpressionException e) {
+	/**
+	 * Liest die Game-Config in einem Durchgang bis zum ersten Element Network.
+	 */
+	private NetworkConfig readNetworkConfig() throws IOException {
+		try (InputStream in = Files.newInputStream(Paths.get(file))) {
+			final XMLStreamReader reader = xmlFactory.createXMLStreamReader(in);
+			try {
+				while (reader.hasNext()) {
+					if (reader.next() == XMLStreamConstants.START_ELEMENT && "Network".equals(reader.getLocalName())) {
+						final NetworkConfig config = new NetworkConfig(attribute(reader, "LogFile"),
+								"1".equals(attribute(reader, "VerboseLogging")),
+								"1".equals(attribute(reader, "DatestampLog")));
+						log.fine("Log-File base name is " + config.getLogFileBaseName() + ", VerboseLogging is " + config.isVerboseLogging());
+						return config;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
 			log.log(Level.SEVERE, "Error parsing Game-Config", e);
 			throw new IOException("Error parsing Game-Config.");
 		}
+		log.warning("No Network element in Game-Config " + file);
+		return new NetworkConfig("", false, false);
+	}
 
+	private static String attribute(XMLStreamReader reader, String name) {
+		final String value = reader.getAttributeValue(null, name);
+		return value != null ? value : "";
+	}
+
+	public String getLogFileBaseName() throws IOException {
+		return getNetworkConfig().getLogFileBaseName();
 	}
 
 	public boolean isVerboseLogging() throws IOException {
-		String logging = "";
+		return getNetworkConfig().isVerboseLogging();
+	}
+
+	/**
+	 * Setzt VerboseLogging im Element Network auf 1.<p>
+	 *
+	 * Das File wird in einem Durchgang gelesen und dabei in das Backup und ein temporres File kopiert. Im
+	 * temporren File ist nur das Attribut gendert, Kommentare und Formatierung des Spiels bleiben erhalten.
+	 * Zum Schluss ersetzt das temporre File das Original mit einem atomaren Rename.
+	 *
+	 * @return Pfad des Backups
+	 * @throws IOException wenn die Game-Config nicht gelesen oder geschrieben werden kann
+	 */
+	public String setVerboseLogging() throws IOException {
+		final Path source = Paths.get(file).toAbsolutePath();
+		final Path backup = Paths.get(file + ".edfootprints-watcher.bak");
+		final Path temp = Files.createTempFile(source.getParent(), source.getFileName().toString(), ".tmp");
 		try {
-			final Document doc = parseGameConfig(file);
-			logging = getConfigValue(doc, "//Network/@VerboseLogging");
-		} catch (ParserConfigurationException | SAXException | XPathExpressionException e) {
-			log.log(Level.SEVERE, "Error parsing Game-Config", e);
-			throw new IOException("Error parsing Game-Config.");
+			log.fine("Rewriting GameConfigFile with verbose logging and writing backup");
+			final boolean found;
+			try (InputStream sourceIn = Files.newInputStream(source);
+					OutputStream backupOut = new BufferedOutputStream(Files.newOutputStream(backup));
+					InputStream in = new BufferedInputStream(new CopyingInputStream(sourceIn, backupOut));
+					FileOutputStream tempOut = new FileOutputStream(temp.toFile())) {
+				final OutputStream out = new BufferedOutputStream(tempOut);
+				found = XmlAttributeRewriter.rewrite(in, out, "Network", "VerboseLogging", "1");
+				out.flush();
+				// erst auf der Platte, dann umbenennen, sonst kann nach einem Absturz ein leeres File brig sein
+				tempOut.getFD().sync();
+			}
+			if (!found) {
+				throw new IOException("No Network element in Game-Config.");
+			}
+			try {
+				Files.move(temp, source, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, source, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+			cached = null;
 		}
-		log.fine("VerboseLogging is " + logging);
 
-		return ("1".equals(logging) ? true : false);
+		return backup.toString();
 	}
 
-	public String setVerboseLogging() throws IOException {
-		// Copy original File
-		log.fine("Copy GameConfigFile");
-		Path copySourcePath = Paths.get(file);
-		Path copyTargetPath = Paths.get(file + ".edfootprints-watcher.bak");
-		Files.copy( copySourcePath, copyTargetPath, StandardCopyOption.REPLACE_EXISTING );
+	/**
+	 * Schreibt alles, was gelesen wird, zustzlich in einen zweiten Stream.
+	 */
+	private static class CopyingInputStream extends FilterInputStream {
+		private final OutputStream copy;
 
-		try {
-			log.fine("Parsing GameConfigFile and set verbose logging");
-			Document doc = parseGameConfig(file);
-			Element e = (Element) doc.getElementsByTagName("Network").item(0);
-			e.setAttribute("VerboseLogging", "1");
-
-			log.fine("Transforming and writing config to file");
-			// Use a Transformer for output
-		    TransformerFactory tFactory =
-		    TransformerFactory.newInstance();
-		    Transformer transformer =
-		    tFactory.newTransformer();
-
-		    DOMSource source = new DOMSource(doc);
-		    StreamResult result = new StreamResult(new File(file));
-		    transformer.transform(source, result);
-		} catch (ParserConfigurationException | SAXException e) {
-			log.log(Level.SEVERE, "Error parsing Game-Config", e);
-			throw new IOException("Error parsing Game-Config.");
-		} catch (TransformerException e1) {
-			log.log(Level.SEVERE, "Error transforming and writing new GameConfigFile", e1);
-			throw new IOException("Error transforming and writing new GameConfigFile");
+		CopyingInputStream(InputStream in, OutputStream copy) {
+			super(in);
+			this.copy = copy;
 		}
 
-		return copyTargetPath.toString();
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b != -1) {
+				copy.write(b);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			final int read = super.read(b, off, len);
+			if (read > 0) {
+				copy.write(b, off, read);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// bersprungene Bytes fehlen sonst in der Kopie
+			if (n <= 0) {
+				return 0;
+			}
+			final int read = read(new byte[(int) Math.min(n, 8192)]);
+			return Math.max(read, 0);
+		}
 	}
 
 }
@@ -1,14 +1,21 @@
 package net.marcomichel.ed.parser;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Properties;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Parst das Log-File von Elite Dangerous und prft dabei, ob in ein anderes System gesprungen wurde.<p>
@@ -22,17 +29,20 @@ import java.util.regex.Pattern;
  * Achtung: Die KLasse ist stateful. Die Instanz muss also weiter verwendet werden und darf nicht
  * bei jedem Aufruf der Methode neu instanziiert werden.<p>
  *
- * Zum parsen wird das bergebene File zeilenweise eingelesen. Jede Zeile wird berprft, ob dort ein
- * bestimmter Eintrag steht, der angibt, in welchem System der Spieler sich befindet.<br>
+ * Zum parsen wird das bergebene File nicht komplett, sondern nur ab dem zuletzt gelesenen Byte-Offset
+ * ber einen FileChannel eingelesen. Es werden also nur die seit dem letzten Aufruf angehngten Daten
+ * gelesen. Jede vollstndige Zeile wird berprft, ob dort ein bestimmter Eintrag steht, der angibt,
+ * in welchem System der Spieler sich befindet. Eine unvollstndige Zeile am Ende des Files wird nicht
+ * verarbeitet, sondern beim nchsten Aufruf erneut gelesen.<br>
  * Das ermittelte System wird mit dem im State gespeicherten System verglichen. Dies ist das System, in dem
  * der Spieler bisher war. Steht im Log-File ein anderes System, wurde ein Sprung durchgefhrt.
  * Das neue System wird im State gespeichert und der Sprung ber den Calback gemeldet.<br>
- * Im State wird zudem gespeichert, in welcher Zeile der Treffer war. Wird das File erneut eingelesen,
- * wird erst ab dieser Zeile auf den Systemeintrag geprft. Damit wird verhindert, dass alte Eintrge erneut
+ * Im State wird zudem der Byte-Offset hinter der Zeile mit dem Treffer gespeichert. Wird das File erneut
+ * eingelesen, wird erst ab diesem Offset gelesen. Damit wird verhindert, dass alte Eintrge erneut
  * als Sprung interpretiert und gemeldet werden.<br>
  * Das zuletzt eingelesen File wird ebenfalls im State gespeichert. Damit wird erkannt, ob ein bereits
- * geparstes File erneut eingelesen wird, oder ob ein neues File geparst wird und damit wieder ab der
- * ersten Zeile geparst werden muss.
+ * geparstes File erneut eingelesen wird, oder ob ein neues File geparst wird und damit wieder am
+ * Anfang des Files gelesen werden muss.
  *
  * @author Marco Michel
  */
@@ -40,31 +50,48 @@ public class GameLogFileParser implements IParser {
 
 	private static final Logger log = Logger.getLogger(GameLogFileParser.class.getName());
 
-	// Das Regex-Pattern des Log-Eintrages, in dem das System steht, in dem der Spieler sich befindet
-	// Beispiel: {18:51:11} System:20(Eravate) Body:34 Pos:(-912.113,387.702,-133.182)
-	private static final String PATTERN_EXPRESSION   = "\\{\\d+:\\d+:\\d+\\} System:\\d+\\(([^)]+)\\).*";
-	private static final Pattern PATTERN             = Pattern.compile(PATTERN_EXPRESSION);
+	// Charset, mit dem die Zeilen des Log-Files dekodiert werden (wie bisher beim FileReader)
+	private static final Charset LOG_CHARSET         = Charset.defaultCharset();
+	// Initiale Gre des Lese-Puffers. Wird vergrert, wenn eine einzelne Zeile nicht hinein passt
+	private static final int READ_BUFFER_SIZE        = 64 * 1024;
+	// Gre der Bereiche, in denen ein File beim Scannen in den Speicher gemappt wird
+	private static final long MAP_WINDOW_SIZE        = 1L << 30;
 
-	// File und Keys des State
+	// Marker, nach dem beim Scannen gesucht wird, und ein Long, das nur aus seinem ersten Byte besteht
+	private static final byte[] SYSTEM_MARKER        = { 'S', 'y', 's', 't', 'e', 'm', ':' };
+	private static final long MARKER_FIRST_BYTES     = 0x5353535353535353L;
+
+	// Files des State
 	private static final String STATE_FILE           = "config/gamelogfileparser-state.properties";
-	private static final String STATE_LAST_FILE      = "lastFile";
-	private static final String STATE_CURRENT_SYSTEM = "currentSystem";
-	private static final String STATE_LAST_MATCH     = "lastMatch";
+	private static final String STATE_JOURNAL        = "config/gamelogfileparser-state.journal";
 
 	// Instanz der Klasse mit dem Callback
 	private IJumpToCallBack callback;
 
-	// Zeile in der der letzte Treffer mit einem Systemname war
-	private int lastMatch = 0;
+	// Byte-Offset hinter der Zeile, in der der letzte Treffer mit einem Systemname war
+	private long lastOffset = 0;
 	// System in dem der Spieler sich aktuell befindet
 	private String currentSystem = "";
+	// das aktuelle System kodiert, um es direkt mit den gelesenen Bytes zu vergleichen
+	private byte[] currentSystemBytes = new byte[0];
 	// System in dem der Spieler sich vor dem letzten Sprung befunden hatte
 	private String previousSystem = "";
 	// Name des Files, das als letztes geparst wurde
-	private String lastFile = null;
+	private String lastFile = "";
+	// Identitt des Files, das als letztes geparst wurde
+	private String lastFileIdentity = "";
+
+	// Bis zu welchem Byte-Offset die einzelnen Files bereits gelesen wurden
+	private Map<String, Long> readOffsets = new HashMap<String, Long>();
+	// Identitt der einzelnen Files beim ersten Lesen
+	private Map<String, String> fileIdentities = new HashMap<String, String>();
+	// Puffer, in den die neu angehngten Bytes gelesen werden
+	private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	// Matcher fr den Log-Eintrag, in dem das System steht, in dem der Spieler sich befindet
+	private SystemLineMatcher matcher = new SystemLineMatcher();
 
-	// der gespeicherte State
-	private Properties state = new Properties();
+	// Journal, in dem der State gespeichert wird
+	private StateJournal journal = new StateJournal(STATE_FILE, STATE_JOURNAL);
 
 	/**
 	 * Konstruktor.<p>
@@ -77,46 +104,95 @@ public class GameLogFileParser implements IParser {
 		this.callback = callback;
 
 		// den gespeicherten State einlesen
-		try {
-			FileReader reader = new FileReader(STATE_FILE);
-			state.load(reader);
-		} catch (IOException e) {
-			log.warning("State file not found, using defaults.");
-		}
+		final StateJournal.Checkpoint checkpoint = journal.recover();
+		if (checkpoint != null) {
+			currentSystem = checkpoint.getSystem();
+			lastFile      = checkpoint.getFile();
 
-		currentSystem = state.getProperty(STATE_CURRENT_SYSTEM, "");
-		lastFile      = state.getProperty(STATE_LAST_FILE, "");
-		lastMatch     = Integer.parseInt(state.getProperty(STATE_LAST_MATCH, "0"));
+			if (checkpoint.getOffset() >= 0) {
+				lastFileIdentity = checkpoint.getFileIdentity();
+				lastOffset = checkpoint.getOffset();
+				final String identity = lastFile.isEmpty() ? lastFileIdentity : StateJournal.fileIdentity(Paths.get(lastFile));
+				if (!lastFileIdentity.equals(identity)) {
+					// unter dem Namen liegt inzwischen ein anderes File
+					log.info("Last file has been replaced. Reading it from offset 0");
+					lastFileIdentity = identity;
+					lastOffset = 0;
+				}
+			} else {
+				// State einer lteren Version, in dem nur die Zeile des letzten Treffers steht
+				lastOffset = offsetOfRow(lastFile, checkpoint.getLegacyRow());
+				if (!lastFile.isEmpty()) {
+					lastFileIdentity = StateJournal.fileIdentity(Paths.get(lastFile));
+				}
+				storeCurrentState();
+			}
+		}
+		currentSystemBytes = currentSystem.getBytes(LOG_CHARSET);
 
 		if (log.isLoggable(Level.INFO)) {
 			log.info("Starting with following state:");
-			log.info("Last Match: " + lastMatch);
+			log.info("Last Offset: " + lastOffset);
 			log.info("Last file: " + lastFile);
 			log.info("Current system: " + currentSystem);
 		}
 	}
 
 	/**
-	 * Parst einen String und prft, ob in ein anderes System gesprungen wurde.
+	 * Ermittelt den Byte-Offset hinter einer Zeile eines Files.<p>
+	 *
+	 * Wird nur bentigt, um einen State zu bernehmen, in dem statt des Offsets die Zeile gespeichert ist.
 	 *
-	 * @param str Der zu parsende String
+	 * @param file das File
+	 * @param row Nummer der Zeile (beginnend bei 1)
+	 * @return Offset hinter der Zeile, 0 wenn das File nicht gelesen werden kann
+	 */
+	private long offsetOfRow(String file, int row) {
+		if (row <= 0 || file.isEmpty()) {
+			return 0;
+		}
+		long position = 0;
+		int rows = 0;
+		try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+			readBuffer.clear();
+			int read;
+			while ((read = channel.read(readBuffer)) != -1) {
+				for (int i = 0; i < read; i++) {
+					if (readBuffer.get(i) == '\n' && ++rows == row) {
+						return position + i + 1;
+					}
+				}
+				position += read;
+				readBuffer.clear();
+			}
+		} catch (IOException e) {
+			log.warning("Cannot convert row " + row + " of file " + file + " to offset. " + e.toString());
+			return 0;
+		}
+		return position;
+	}
+
+	/**
+	 * Prft eine Zeile, ob in ein anderes System gesprungen wurde.
+	 *
+	 * @param buffer Puffer mit der Zeile
+	 * @param start Index des ersten Bytes der Zeile
+	 * @param end Index hinter dem letzten Byte der Zeile
 	 * @return true, wenn in ein anderes System gesprungen wurde, false wenn nicht
 	 */
-	private boolean findSystemChange(String str) {
-		log.finest(str);
+	private boolean findSystemChange(ByteBuffer buffer, int start, int end) {
 		boolean match = false;
-		// den bergebenen String gegen unsere Regex checken
-		Matcher m = PATTERN.matcher(str);
 
-		 if (m.matches()) {
+		 if (matcher.matches(buffer, start, end)) {
 			 log.fine("Matches found");
 
 			 // Wenn es einen Treffer gibt und wir ein anderes System haben als bisher
-			 // das vorherige System setzen, das aktuelle aus dem String bernehmen
+			 // das vorherige System setzen, das aktuelle aus der Zeile bernehmen
 			 // und Treffer zurck melden
-			 if (!currentSystem.equals(m.group(1))) {
+			 if (!matcher.isSystemName(buffer, currentSystemBytes)) {
 				 previousSystem = currentSystem;
-				 currentSystem = m.group(1);
+				 currentSystem = matcher.getSystemName(buffer, LOG_CHARSET);
+				 currentSystemBytes = currentSystem.getBytes(LOG_CHARSET);
 				 if (previousSystem.isEmpty()) {
 					 previousSystem = currentSystem;
 				 }
@@ -128,18 +204,17 @@ public class GameLogFileParser implements IParser {
 	}
 
 	/**
-	 * Speichert den aktuellen State
+	 * Speichert den aktuellen State im Journal
 	 */
 	private void storeCurrentState() {
-		try {
-			FileWriter writer = new FileWriter(STATE_FILE);
-			state.put(STATE_LAST_MATCH, String.valueOf(lastMatch));
-			state.put(STATE_CURRENT_SYSTEM, currentSystem);
-			state.put(STATE_LAST_FILE, lastFile);
-			state.store(writer, "State of GameLogFileParser");
-		} catch (IOException e) {
-			log.log(Level.SEVERE, "Cannot store state.", e);
-		}
+		journal.append(new StateJournal.Checkpoint(lastFile, lastFileIdentity, lastOffset, currentSystem));
+	}
+
+	/**
+	 * Schreibt den State vollstndig auf die Platte und schliet das Journal.
+	 */
+	public void close() {
+		journal.close();
 	}
 
 	/**
@@ -154,68 +229,251 @@ public class GameLogFileParser implements IParser {
 	 */
 	public void parseFile(String file) {
 
-		// Wenn ein anderes File kommt als bisher, die zuletzt gelesene Zeile auf 0,
-		// um am Anfang des Files zu lesen
-		// Wir gehen davon aus, dass ein neues Log-File geschrieben wird.
-		// Es knnte aber auch irgendein anderes File sein, das mit dem Logging
-		// das wir brauchen, nichts zu tun hat. Fr den Fall merken wir uns die
-		// alte Zeile und stellen sie wieder her, falls es in dem File keine Treffer gibt
-		log.finer("Parsing from line " + lastMatch);
-		int oldMatch  = lastMatch;
-		boolean fileMatch = false;
-
-		if (!lastFile.equals(file)) {
-			log.finer("got a different file than the last one. Setting lastMatch = 0");
-			lastMatch = 0;
+		// Ab welchem Offset gelesen werden muss:
+		// Ist das File schon einmal gelesen worden, ab dem Ende des letzten Lesens.
+		// Ist es das File mit dem letzten Treffer aus dem gespeicherten State, ab dem Offset hinter
+		// dem Treffer. Ansonsten ist es ein neues File und es wird am Anfang des Files gelesen.
+		// Offsets von anderen Files, die mit dem Logging das wir brauchen nichts zu tun haben,
+		// verndern den State nicht.
+		final Path path = Paths.get(file);
+		Long readOffset = readOffsets.get(file);
+		long offset;
+		if (readOffset != null) {
+			offset = readOffset;
+		} else if (lastFile.equals(file)) {
+			offset = lastOffset;
+			fileIdentities.put(file, lastFileIdentity);
+		} else {
+			log.finer("got a different file than the last one. Reading from offset 0");
+			offset = 0;
+			fileIdentities.put(file, StateJournal.fileIdentity(path));
 		}
 
-		// Das File Zeilenweise durchlesen
-		BufferedReader in = null;
-		int row = 0;
-
-		try {
-			in = new BufferedReader(new FileReader(file));
-			String zeile = null;
-
-			while ((zeile = in.readLine()) != null) {
-				log.finest("row readed: " + zeile);
-				row++;
-				// Wenn die aktuell gelesene Zeile grer ist, als die letzte, bei der es einen Treffer gab,
-				// suchen wir, nach Treffern fr Sprung in anderes System in der Zeile
-				if (row > lastMatch) {
-					boolean match = findSystemChange(zeile);
-					// Wenn es einen Treffer gab, Callback aufrufen,
-					// diesen Filenamen und die aktuelle Zeile merken und State speichern
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			if (size < offset) {
+				// File ist kleiner geworden, wurde also neu geschrieben
+				log.finer("file " + file + " has been truncated. Reading from offset 0");
+				offset = 0;
+				fileIdentities.put(file, StateJournal.fileIdentity(path));
+			}
+			if (size > offset) {
+				log.finer("Parsing " + (size - offset) + " new bytes from offset " + offset);
+				offset = parseAppendedBytes(channel, file, offset);
+			}
+			readOffsets.put(file, offset);
+		} catch (NoSuchFileException e) {
+			log.finer("file " + file + " does not exist any more");
+			readOffsets.remove(file);
+			fileIdentities.remove(file);
+		} catch (IOException e) {
+			log.warning(e.toString() + " during read of file " + file);
+		}
+
+		// alle Checkpoints dieses Durchlaufs mit einem einzigen fsync schreiben
+		journal.sync();
+
+		log.finer("lastOffset after parsing is " + lastOffset);
+	}
+
+	/**
+	 * Liest alle vollstndigen Zeilen ab einem Offset und prft jede Zeile auf einen Systemsprung.
+	 *
+	 * @param channel Channel des Files
+	 * @param file Name des Files
+	 * @param offset Offset, ab dem gelesen wird. Muss am Anfang einer Zeile liegen
+	 * @return Offset hinter der letzten vollstndig gelesenen Zeile
+	 * @throws IOException wenn das File nicht gelesen werden kann
+	 */
+	private long parseAppendedBytes(FileChannel channel, String file, long offset) throws IOException {
+		// Offset des ersten Bytes im Puffer
+		long bufferOffset = offset;
+		readBuffer.clear();
+
+		while (channel.read(readBuffer, bufferOffset + readBuffer.position()) > 0) {
+			final byte[] bytes = readBuffer.array();
+			final int limit = readBuffer.position();
+			int lineStart = 0;
+
+			for (int i = 0; i < limit; i++) {
+				if (bytes[i] == '\n') {
+					int lineEnd = i;
+					if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') {
+						lineEnd--;
+					}
+					if (log.isLoggable(Level.FINEST)) {
+						log.finest("row readed: " + new String(bytes, lineStart, lineEnd - lineStart, LOG_CHARSET));
+					}
+					final boolean match = findSystemChange(readBuffer, lineStart, lineEnd);
+					final long lineOffset = bufferOffset + lineStart;
+					lineStart = i + 1;
+
+					// Wenn es einen Treffer gab, Callback mit der ID aus File und Offset der Zeile aufrufen,
+					// diesen Filenamen und den Offset hinter der Zeile merken und State speichern
 					if (match) {
-						fileMatch = true;
-						callback.jumpedTo(previousSystem, currentSystem);
+						callback.jumpedTo(previousSystem, currentSystem, EventId.of(fileIdentities.get(file), lineOffset));
 						lastFile = file;
-						lastMatch = row;
+						lastFileIdentity = fileIdentities.get(file);
+						lastOffset = bufferOffset + lineStart;
 						storeCurrentState();
 					}
 				}
 			}
 
-		} catch (IOException e) {
-			log.warning(e.toString() + " during read of file " + file);
-		} finally {
-			if (in != null) {
-				try {
-					in.close();
-				} catch (IOException e) {
-					log.warning("Cannot close FileInputStream of file " + file);
+			if (lineStart == 0 && !readBuffer.hasRemaining()) {
+				// Die Zeile passt nicht in den Puffer, also vergrern
+				final ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+				readBuffer.flip();
+				larger.put(readBuffer);
+				readBuffer = larger;
+				log.finer("Increased read buffer to " + readBuffer.capacity() + " bytes");
+			} else {
+				// Verarbeitete Zeilen verwerfen, eine angefangene Zeile an den Anfang des Puffers schieben
+				readBuffer.flip();
+				readBuffer.position(lineStart);
+				readBuffer.compact();
+				bufferOffset += lineStart;
+			}
+		}
+
+		// Eine unvollstndige letzte Zeile bleibt im Puffer und wird beim nchsten Mal erneut gelesen
+		return bufferOffset;
+	}
+
+	/**
+	 * Durchsucht ein komplettes Log-File nach Sprngen, z.B. um alte Sessions nachtrglich einzulesen.<p>
+	 *
+	 * Das File wird in den Speicher gemappt und direkt in den Bytes nach dem Marker "System:" gesucht.
+	 * Nur die Zeilen mit einem Treffer werden geprft und nur der Name eines neuen Systems wird dekodiert.
+	 * Der State des Parsers wird dabei weder gelesen noch verndert.
+	 *
+	 * @param file Name des Files, incl. Pfad
+	 * @param startSystem System, in dem der Spieler sich am Anfang des Files befindet, oder ""
+	 * @param consumer bekommt jeden gefundenen Sprung in der Reihenfolge des Files
+	 * @return das System, in dem der Spieler sich am Ende des Files befindet
+	 * @throws IOException wenn das File nicht gelesen werden kann
+	 */
+	public static String scanFile(String file, String startSystem, Consumer<JumpEvent> consumer) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+			return scanRange(channel, file, 0, channel.size(), startSystem, consumer);
+		}
+	}
+
+	/**
+	 * Durchsucht einen Bereich eines Log-Files nach Sprngen.
+	 *
+	 * @param channel Channel des Files
+	 * @param file Name des Files fr die gefundenen Sprnge
+	 * @param start Offset, ab dem gesucht wird. Muss am Anfang einer Zeile liegen
+	 * @param end Offset, bis zu dem gesucht wird. Muss am Ende einer Zeile oder des Files liegen
+	 * @param startSystem System, in dem der Spieler sich bei start befindet, oder ""
+	 * @param consumer bekommt jeden gefundenen Sprung
+	 * @return das System, in dem der Spieler sich bei end befindet
+	 * @throws IOException wenn das File nicht gelesen werden kann
+	 */
+	static String scanRange(FileChannel channel, String file, long start, long end, String startSystem,
+			Consumer<JumpEvent> consumer) throws IOException {
+		final SystemLineMatcher lineMatcher = new SystemLineMatcher();
+		String system = startSystem;
+		byte[] systemBytes = system.getBytes(LOG_CHARSET);
+
+		long position = start;
+		while (position < end) {
+			final long length = Math.min(end - position, MAP_WINDOW_SIZE);
+			final MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, position, length);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			// Der Bereich endet hinter der letzten vollstndigen Zeile, der Rest kommt in den nchsten Bereich
+			int limit = (int) length;
+			if (position + length < end) {
+				final int lastNewline = lastIndexOf(buffer, (byte) '\n', limit - 1, 0);
+				if (lastNewline >= 0) {
+					limit = lastNewline + 1;
+				}
+			}
+
+			int i = 0;
+			while ((i = indexOfMarker(buffer, i, limit)) >= 0) {
+				final int lineStart = lastIndexOf(buffer, (byte) '\n', i - 1, 0) + 1;
+				int lineEnd = indexOf(buffer, (byte) '\n', i, limit);
+				if (lineEnd < 0) {
+					lineEnd = limit;
+				}
+				final int next = lineEnd + 1;
+				if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+					lineEnd--;
+				}
+
+				if (lineMatcher.matches(buffer, lineStart, lineEnd) && !lineMatcher.isSystemName(buffer, systemBytes)) {
+					final String to = lineMatcher.getSystemName(buffer, LOG_CHARSET);
+					consumer.accept(new JumpEvent(file, position + lineStart, system.isEmpty() ? to : system, to));
+					system = to;
+					systemBytes = to.getBytes(LOG_CHARSET);
 				}
+				i = next;
+			}
+			position += limit;
+		}
+		return system;
+	}
+
+	/**
+	 * Sucht den nchsten Marker "System:". Es werden jeweils 8 Bytes auf einmal auf das erste
+	 * Byte des Markers geprft.
+	 *
+	 * @return Index des Markers, -1 wenn bis limit kein Marker gefunden wurde
+	 */
+	private static int indexOfMarker(ByteBuffer buffer, int from, int limit) {
+		int i = from;
+		while (i + Long.BYTES <= limit) {
+			final long word = buffer.getLong(i) ^ MARKER_FIRST_BYTES;
+			final long found = (word - 0x0101010101010101L) & ~word & 0x8080808080808080L;
+			if (found == 0) {
+				i += Long.BYTES;
+			} else {
+				i += Long.numberOfTrailingZeros(found) >>> 3;
+				if (isMarker(buffer, i, limit)) {
+					return i;
+				}
+				i++;
+			}
+		}
+		for (; i < limit; i++) {
+			if (isMarker(buffer, i, limit)) {
+				return i;
 			}
 		}
+		return -1;
+	}
+
+	private static boolean isMarker(ByteBuffer buffer, int i, int limit) {
+		if (i + SYSTEM_MARKER.length > limit) {
+			return false;
+		}
+		for (int m = 0; m < SYSTEM_MARKER.length; m++) {
+			if (buffer.get(i + m) != SYSTEM_MARKER[m]) {
+				return false;
+			}
+		}
+		return true;
+	}
 
-		// Im ganzen File gab es keinen Treffer.
-		// War also etwas uninteressantes. Auf Zeile des letzten Treffers zurcksetzen
-		// um beim alten Stand aufzusetzen, wenn wieder das korrekte File kommt
-		if (!fileMatch) {
-			lastMatch = oldMatch;
-			log.finer("no match in file, restoring old lastMatch");
+	private static int indexOf(ByteBuffer buffer, byte b, int from, int limit) {
+		for (int i = from; i < limit; i++) {
+			if (buffer.get(i) == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int lastIndexOf(ByteBuffer buffer, byte b, int from, int start) {
+		for (int i = from; i >= start; i--) {
+			if (buffer.get(i) == b) {
+				return i;
+			}
 		}
-		log.finer("lastMatch after parsing is " + lastMatch);
+		return -1;
 	}
 
 }
@@ -12,6 +12,7 @@ public interface IJumpToCallBack {
 	 * 
 	 * @param from Das System aus dem gesprungen wurde
 	 * @param to System in das gesprungen wurde
+	 * @param eventId deterministische ID des Sprungs, siehe {@link EventId}
 	 */
-	public void jumpedTo(String from, String to);
+	public void jumpedTo(String from, String to, long eventId);
 }
@@ -19,4 +19,9 @@ public interface IParser {
 	 * @return das aktuelle System
 	 */
 	public String getCurrentSystem();
+
+	/**
+	 * Speichert den State und gibt alle Ressourcen frei.
+	 */
+	public void close();
 }
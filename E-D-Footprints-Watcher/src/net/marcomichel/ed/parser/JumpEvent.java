@@ -0,0 +1,53 @@
+package net.marcomichel.ed.parser;
+
+/**
+ * Ein Sprung in ein anderes System, der in einem Log-File gefunden wurde.<p>
+ *
+ * Neben den beiden Systemen wird das File und der Byte-Offset der Zeile mit dem Systemeintrag
+ * festgehalten. Damit lassen sich Sprnge aus mehreren Files in die richtige Reihenfolge bringen.
+ *
+ * @author Marco Michel
+ */
+public class JumpEvent {
+
+	private final String file;
+	private final long offset;
+	private final String from;
+	private final String to;
+
+	/**
+	 * @param file File, in dem der Sprung gefunden wurde
+	 * @param offset Byte-Offset der Zeile mit dem Systemeintrag
+	 * @param from System aus dem gesprungen wurde
+	 * @param to System in das gesprungen wurde
+	 */
+	public JumpEvent(String file, long offset, String from, String to) {
+		super();
+		this.file = file;
+		this.offset = offset;
+		this.from = from;
+		this.to = to;
+	}
+
+	public String getFile() {
+		return file;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public String getFrom() {
+		return from;
+	}
+
+	public String getTo() {
+		return to;
+	}
+
+	@Override
+	public String toString() {
+		return "JumpEvent [file=" + file + ", offset=" + offset + ", from=" + from + ", to=" + to + "]";
+	}
+
+}
@@ -0,0 +1,43 @@
+package net.marcomichel.ed.parser;
+
+/**
+ * Ein Sprung aus dem Commanders Log, ein CommandersLogEvent mit dem EventType "Jumped To".
+ *
+ * @author Marco Michel
+ */
+public class JumpRecord {
+
+	private final String system;
+	private final String eventId;
+	private final String eventDate;
+
+	/**
+	 * @param system System, in das gesprungen wurde, null wenn es im Log fehlt
+	 * @param eventId EventID aus dem Log
+	 * @param eventDate EventDate aus dem Log, ISO 8601 mit oder ohne Offset
+	 */
+	public JumpRecord(String system, String eventId, String eventDate) {
+		super();
+		this.system = system;
+		this.eventId = eventId;
+		this.eventDate = eventDate;
+	}
+
+	public String getSystem() {
+		return system;
+	}
+
+	public String getEventId() {
+		return eventId;
+	}
+
+	public String getEventDate() {
+		return eventDate;
+	}
+
+	@Override
+	public String toString() {
+		return "JumpRecord [system=" + system + ", eventId=" + eventId + ", eventDate=" + eventDate + "]";
+	}
+
+}
@@ -0,0 +1,180 @@
+package net.marcomichel.ed.parser;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Logger;
+
+/**
+ * Liest alle alten Log-Files eines Verzeichnisses ein und ermittelt daraus alle Sprnge.<p>
+ *
+ * Die Files werden parallel auf einem Fork/Join-Pool mit {@link GameLogFileParser#scanFile(String, String, java.util.function.Consumer)}
+ * durchsucht. Die Files werden nach ihrem Namen sortiert, der den Zeitstempel enthlt (z.B. netLog.1505111649.02.log).
+ * Die Sprnge der einzelnen Files werden anschlieend in dieser Reihenfolge zusammengefhrt, so dass ein
+ * chronologisch sortierter Strom von Sprngen ber alle Files entsteht.
+ *
+ * @author Marco Michel
+ */
+public class LogBackfill {
+
+	private static final Logger log = Logger.getLogger(LogBackfill.class.getName());
+
+	private final Path directory;
+	private final String baseName;
+
+	/**
+	 * @param directory Verzeichnis mit den Log-Files
+	 * @param baseName Basisname der Log-Files aus der Game-Config, z.B. netLog
+	 */
+	public LogBackfill(String directory, String baseName) {
+		this.directory = Paths.get(directory);
+		this.baseName = baseName;
+	}
+
+	/**
+	 * Ermittelt alle Sprnge aus allen Log-Files und meldet sie in chronologischer Reihenfolge
+	 * ber den Callback.<p>
+	 *
+	 * Die ID eines Sprungs wird wie beim {@link GameLogFileParser} aus der Identitt des Files und dem Offset
+	 * der Zeile berechnet. Sprnge, die schon live gemeldet wurden, bekommen also die gleiche ID.
+	 *
+	 * @param callback wird fr jeden Sprung aufgerufen
+	 * @return Anzahl der gemeldeten Sprnge
+	 * @throws IOException wenn das Verzeichnis oder ein File nicht gelesen werden kann
+	 */
+	public int run(IJumpToCallBack callback) throws IOException {
+		final List<JumpEvent> jumps = collectJumps();
+		final Map<String, String> identities = new HashMap<String, String>();
+		for (JumpEvent jump : jumps) {
+			final String identity = identities.computeIfAbsent(jump.getFile(), file -> StateJournal.fileIdentity(Paths.get(file)));
+			callback.jumpedTo(jump.getFrom(), jump.getTo(), EventId.of(identity, jump.getOffset()));
+		}
+		return jumps.size();
+	}
+
+	/**
+	 * Ermittelt alle Sprnge aus allen Log-Files.
+	 *
+	 * @return alle Sprnge in chronologischer Reihenfolge
+	 * @throws IOException wenn das Verzeichnis oder ein File nicht gelesen werden kann
+	 */
+	public List<JumpEvent> collectJumps() throws IOException {
+		final List<Path> files = listLogFiles();
+		log.info("Backfilling " + files.size() + " log files from " + directory);
+		if (files.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		final long ts = System.currentTimeMillis();
+		final ForkJoinPool pool = new ForkJoinPool();
+		final List<List<JumpEvent>> parts;
+		try {
+			parts = pool.invoke(new ScanTask(files, 0, files.size()));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			pool.shutdown();
+		}
+
+		final List<JumpEvent> jumps = link(parts, "");
+		log.info("Found " + jumps.size() + " jumps in " + (System.currentTimeMillis() - ts) + " ms");
+		return jumps;
+	}
+
+	/**
+	 * @return alle Log-Files des Verzeichnisses, sortiert nach Namen
+	 */
+	private List<Path> listLogFiles() throws IOException {
+		final List<Path> files = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, baseName + "*")) {
+			for (Path file : stream) {
+				if (Files.isRegularFile(file)) {
+					files.add(file);
+				}
+			}
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * Verbindet Sprnge, die unabhngig voneinander in aufeinander folgenden Teilen gefunden wurden.<p>
+	 *
+	 * Der erste Sprung jedes Teils kennt das System davor nicht. Er bekommt das letzte System des
+	 * vorherigen Teils als Ausgangssystem. Ist er in das gleiche System gegangen, war es kein Sprung
+	 * und er wird verworfen.
+	 *
+	 * @param parts Sprnge der einzelnen Teile in der richtigen Reihenfolge
+	 * @param startSystem System vor dem ersten Teil, oder ""
+	 * @return alle Sprnge
+	 */
+	static List<JumpEvent> link(List<List<JumpEvent>> parts, String startSystem) {
+		final List<JumpEvent> jumps = new ArrayList<JumpEvent>();
+		String system = startSystem;
+		for (List<JumpEvent> part : parts) {
+			for (int i = 0; i < part.size(); i++) {
+				JumpEvent jump = part.get(i);
+				if (i == 0 && !system.isEmpty()) {
+					if (system.equals(jump.getTo())) {
+						continue;
+					}
+					jump = new JumpEvent(jump.getFile(), jump.getOffset(), system, jump.getTo());
+				}
+				jumps.add(jump);
+				system = jump.getTo();
+			}
+		}
+		return jumps;
+	}
+
+	/**
+	 * Durchsucht einen Bereich der Liste von Files, teilt ihn dazu so lange, bis nur ein File brig ist.
+	 */
+	private static class ScanTask extends RecursiveTask<List<List<JumpEvent>>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<Path> files;
+		private final int from;
+		private final int to;
+
+		ScanTask(List<Path> files, int from, int to) {
+			this.files = files;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected List<List<JumpEvent>> compute() {
+			if (to - from == 1) {
+				final List<JumpEvent> jumps = new ArrayList<JumpEvent>();
+				try {
+					GameLogFileParser.scanFile(files.get(from).toString(), "", jumps::add);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				log.fine(jumps.size() + " jumps in " + files.get(from));
+				final List<List<JumpEvent>> result = new ArrayList<List<JumpEvent>>();
+				result.add(jumps);
+				return result;
+			}
+
+			final int middle = (from + to) >>> 1;
+			final ScanTask left = new ScanTask(files, from, middle);
+			left.fork();
+			final List<List<JumpEvent>> result = new ScanTask(files, middle, to).compute();
+			result.addAll(0, left.join());
+			return result;
+		}
+	}
+}
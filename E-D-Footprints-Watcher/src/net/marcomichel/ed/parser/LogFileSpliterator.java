@@ -0,0 +1,191 @@
+package net.marcomichel.ed.parser;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Spliterator ber die Sprnge in einem Log-File, mit dem ein groes File parallel durchsucht werden kann.<p>
+ *
+ * Das File wird beim Teilen in Bereiche von Bytes zerlegt, die immer am Anfang einer Zeile beginnen.
+ * Jeder Bereich wird fr sich mit dem gleichen Matcher wie im GameLogFileParser durchsucht. Da ein Bereich
+ * nicht wei, in welchem System der Spieler sich an seinem Anfang befindet, hat der erste Sprung jedes
+ * Bereichs kein Ausgangssystem (from ist null). Nach dem Einsammeln werden die Sprnge mit
+ * {@link #relink(List, String)} wieder verbunden.<p>
+ *
+ * Beispiel:
+ * <pre>
+ * try (Stream&lt;JumpEvent&gt; stream = LogFileSpliterator.stream(file)) {
+ *     List&lt;JumpEvent&gt; jumps = LogFileSpliterator.relink(stream.collect(Collectors.toList()), "");
+ * }
+ * </pre>
+ *
+ * @author Marco Michel
+ */
+public class LogFileSpliterator implements Spliterator<JumpEvent> {
+
+	// Bereiche, die kleiner sind, werden nicht weiter geteilt
+	private static final long MIN_SPLIT_SIZE = 4L * 1024 * 1024;
+
+	private final FileChannel channel;
+	private final String file;
+	private long start;
+	private final long end;
+
+	// Sprnge des Bereichs, wird beim ersten tryAdvance gefllt
+	private ArrayDeque<JumpEvent> jumps = null;
+
+	/**
+	 * @param channel Channel des Files, wird von allen Teilen gemeinsam benutzt
+	 * @param file Name des Files fr die gefundenen Sprnge
+	 * @param start Anfang des Bereichs, muss am Anfang einer Zeile liegen
+	 * @param end Ende des Bereichs, muss am Ende einer Zeile oder des Files liegen
+	 */
+	public LogFileSpliterator(FileChannel channel, String file, long start, long end) {
+		this.channel = channel;
+		this.file = file;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Erzeugt einen parallelen Stream ber alle Sprnge eines Files.<p>
+	 *
+	 * Der Stream muss geschlossen werden, damit das File geschlossen wird.
+	 *
+	 * @param file Name des Files, incl. Pfad
+	 * @return paralleler Stream, der erste Sprung jedes Bereichs hat kein Ausgangssystem
+	 * @throws IOException wenn das File nicht geffnet werden kann
+	 */
+	public static Stream<JumpEvent> stream(String file) throws IOException {
+		final FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+		return StreamSupport.stream(new LogFileSpliterator(channel, file, 0, channel.size()), true)
+				.onClose(() -> {
+					try {
+						channel.close();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+	}
+
+	/**
+	 * Verbindet die Sprnge der einzelnen Bereiche wieder.<p>
+	 *
+	 * Ein Sprung ohne Ausgangssystem bekommt das System des vorherigen Sprungs. Ist er in das gleiche
+	 * System gegangen, war es kein Sprung und er wird verworfen.
+	 *
+	 * @param jumps Sprnge in der Reihenfolge des Files
+	 * @param startSystem System am Anfang des Files, oder ""
+	 * @return die verbundenen Sprnge
+	 */
+	public static List<JumpEvent> relink(List<JumpEvent> jumps, String startSystem) {
+		final List<JumpEvent> result = new ArrayList<JumpEvent>(jumps.size());
+		String system = startSystem;
+		for (JumpEvent jump : jumps) {
+			if (jump.getFrom() == null) {
+				if (system.equals(jump.getTo())) {
+					continue;
+				}
+				jump = new JumpEvent(jump.getFile(), jump.getOffset(), system.isEmpty() ? jump.getTo() : system, jump.getTo());
+			}
+			result.add(jump);
+			system = jump.getTo();
+		}
+		return result;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super JumpEvent> action) {
+		if (jumps == null) {
+			scan();
+		}
+		final JumpEvent jump = jumps.poll();
+		if (jump == null) {
+			return false;
+		}
+		action.accept(jump);
+		return true;
+	}
+
+	/**
+	 * Durchsucht den ganzen Bereich und merkt sich die Sprnge.
+	 */
+	private void scan() {
+		jumps = new ArrayDeque<JumpEvent>();
+		try {
+			GameLogFileParser.scanRange(channel, file, start, end, "", jumps::add);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		// Das System vor dem ersten Sprung ist in diesem Bereich nicht bekannt
+		final JumpEvent first = jumps.poll();
+		if (first != null) {
+			jumps.addFirst(new JumpEvent(first.getFile(), first.getOffset(), null, first.getTo()));
+		}
+	}
+
+	@Override
+	public Spliterator<JumpEvent> trySplit() {
+		if (jumps != null || end - start < MIN_SPLIT_SIZE) {
+			return null;
+		}
+		final long middle;
+		try {
+			middle = nextLineStart(start + (end - start) / 2);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (middle <= start || middle >= end) {
+			return null;
+		}
+		final LogFileSpliterator prefix = new LogFileSpliterator(channel, file, start, middle);
+		start = middle;
+		return prefix;
+	}
+
+	/**
+	 * @return Offset des Anfangs der ersten Zeile ab position, end wenn keine Zeile mehr anfngt
+	 */
+	private long nextLineStart(long position) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(4096);
+		long pos = position;
+		while (pos < end) {
+			buffer.clear();
+			final int read = channel.read(buffer, pos);
+			if (read <= 0) {
+				break;
+			}
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n') {
+					return pos + i + 1;
+				}
+			}
+			pos += read;
+		}
+		return end;
+	}
+
+	/**
+	 * @return Anzahl der noch nicht durchsuchten Bytes als Schtzung
+	 */
+	@Override
+	public long estimateSize() {
+		return jumps != null ? jumps.size() : end - start;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | NONNULL | IMMUTABLE;
+	}
+}
@@ -0,0 +1,437 @@
+package net.marcomichel.ed.parser;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Speichert den State des GameLogFileParser absturzsicher.<p>
+ *
+ * Jeder Checkpoint wird als kleiner Datensatz (File, Identitt des Files, Offset, System) an ein Journal
+ * angehngt, statt jedes Mal das ganze State-File neu zu schreiben. Jeder Datensatz hat eine Lnge und
+ * eine Prfsumme, ein beim Absturz nur halb geschriebener Datensatz wird beim Einlesen erkannt und verworfen.<br>
+ * Das Journal wird nicht nach jedem Datensatz, sondern erst nach mehreren Datenstzen oder beim Aufruf
+ * von {@link #sync()} auf die Platte geschrieben (fsync).<br>
+ * Wird das Journal zu gro, wird der letzte Checkpoint als Snapshot in das State-File geschrieben
+ * (ber ein temporres File und ein atomares Umbenennen) und das Journal geleert.<p>
+ *
+ * Beim Start wird zuerst der Snapshot gelesen und danach alle Datenstze des Journals.
+ * Der letzte gltige Datensatz ist der aktuelle State.<p>
+ *
+ * Die Methoden sind synchronisiert, der Parse-Thread hngt an, whrend z.B. beim Stoppen ein anderer Thread
+ * das Journal schliet.
+ *
+ * @author Marco Michel
+ */
+public class StateJournal implements Closeable {
+
+	private static final Logger log = Logger.getLogger(StateJournal.class.getName());
+
+	// Keys des Snapshots
+	private static final String STATE_LAST_FILE      = "lastFile";
+	private static final String STATE_FILE_IDENTITY  = "lastFileIdentity";
+	private static final String STATE_CURRENT_SYSTEM = "currentSystem";
+	private static final String STATE_LAST_OFFSET    = "lastOffset";
+	private static final String STATE_LAST_MATCH     = "lastMatch";
+
+	// Nach wie vielen Datenstzen sptestens ein fsync gemacht wird
+	private static final int SYNC_RECORDS            = 64;
+	// Ab wie vielen Datenstzen im Journal ein Snapshot geschrieben wird
+	private static final int COMPACT_RECORDS         = 4096;
+
+	/**
+	 * Ein gespeicherter Stand des Parsers.
+	 */
+	public static class Checkpoint {
+		private final String file;
+		private final String fileIdentity;
+		private final long offset;
+		private final String system;
+		private final int legacyRow;
+
+		public Checkpoint(String file, String fileIdentity, long offset, String system) {
+			this(file, fileIdentity, offset, system, 0);
+		}
+
+		private Checkpoint(String file, String fileIdentity, long offset, String system, int legacyRow) {
+			this.file = file;
+			this.fileIdentity = fileIdentity;
+			this.offset = offset;
+			this.system = system;
+			this.legacyRow = legacyRow;
+		}
+
+		public String getFile() {
+			return file;
+		}
+
+		public String getFileIdentity() {
+			return fileIdentity;
+		}
+
+		/**
+		 * @return Offset hinter der Zeile mit dem letzten Treffer, -1 wenn nur die Zeile bekannt ist
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		public String getSystem() {
+			return system;
+		}
+
+		/**
+		 * @return Zeile des letzten Treffers aus dem State einer lteren Version, sonst 0
+		 */
+		public int getLegacyRow() {
+			return legacyRow;
+		}
+	}
+
+	private final Path snapshotFile;
+	private final Path journalFile;
+
+	private FileChannel journal;
+	// letzter Checkpoint, wird beim Komprimieren als Snapshot geschrieben
+	private Checkpoint last;
+	// Anzahl der Datenstze im Journal und der noch nicht mit fsync geschriebenen Datenstze
+	private int records = 0;
+	private int unsynced = 0;
+	// Lnge des zuletzt gelesenen Datensatzes incl. Lnge und Prfsumme
+	private int lastRecordLength = 0;
+
+	// wiederverwendeter Puffer fr einen Datensatz
+	private final RecordBuffer recordBytes = new RecordBuffer(256);
+	private final DataOutputStream recordOut = new DataOutputStream(recordBytes);
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * @param snapshotFile File mit dem Snapshot im Properties-Format
+	 * @param journalFile File mit dem Journal
+	 */
+	public StateJournal(String snapshotFile, String journalFile) {
+		this.snapshotFile = Paths.get(snapshotFile);
+		this.journalFile = Paths.get(journalFile);
+	}
+
+	/**
+	 * Liest den Snapshot und das Journal ein und ffnet das Journal zum Anhngen neuer Datenstze.
+	 *
+	 * @return der zuletzt gespeicherte Checkpoint, null wenn es keinen gibt
+	 */
+	public synchronized Checkpoint recover() {
+		last = readSnapshot();
+
+		long validLength = 0;
+		try (InputStream in = Files.newInputStream(journalFile)) {
+			final DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+			while (true) {
+				final Checkpoint checkpoint = readRecord(data);
+				if (checkpoint == null) {
+					break;
+				}
+				last = checkpoint;
+				records++;
+				validLength += lastRecordLength;
+			}
+		} catch (NoSuchFileException e) {
+			log.fine("No state journal found.");
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Cannot read state journal completely.", e);
+		}
+
+		try {
+			journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			if (journal.size() > validLength) {
+				// unvollstndigen Datensatz vom letzten Absturz abschneiden
+				log.warning("Discarding " + (journal.size() - validLength) + " bytes of incomplete state journal.");
+				journal.truncate(validLength);
+				journal.force(false);
+			}
+			journal.position(validLength);
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Cannot open state journal.", e);
+			journal = null;
+		}
+
+		log.fine("Recovered state from snapshot and " + records + " journal records.");
+		return last;
+	}
+
+	/**
+	 * Hngt einen Checkpoint an das Journal an.<p>
+	 *
+	 * Der Datensatz wird erst nach mehreren Checkpoints oder beim nchsten {@link #sync()} mit fsync
+	 * auf die Platte geschrieben.
+	 *
+	 * @param checkpoint der neue State
+	 */
+	public synchronized void append(Checkpoint checkpoint) {
+		last = checkpoint;
+		if (journal == null && !openJournal()) {
+			return;
+		}
+		try {
+			final ByteBuffer record = encode(checkpoint);
+			while (record.hasRemaining()) {
+				journal.write(record);
+			}
+			records++;
+			if (++unsynced >= SYNC_RECORDS) {
+				sync();
+			}
+			if (records >= COMPACT_RECORDS) {
+				compact();
+			}
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Cannot store state.", e);
+		}
+	}
+
+	/**
+	 * Schreibt alle angehngten Datenstze mit fsync auf die Platte.
+	 */
+	public synchronized void sync() {
+		if (journal == null || unsynced == 0) {
+			return;
+		}
+		try {
+			journal.force(false);
+			unsynced = 0;
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Cannot sync state journal.", e);
+		}
+	}
+
+	/**
+	 * Schreibt den letzten Checkpoint als Snapshot und leert das Journal.
+	 */
+	public synchronized void compact() {
+		if (last == null || journal == null || records == 0) {
+			return;
+		}
+		try {
+			sync();
+			writeSnapshot(last);
+			journal.truncate(0);
+			journal.position(0);
+			journal.force(false);
+			records = 0;
+			log.fine("State journal compacted.");
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Cannot compact state journal.", e);
+		}
+	}
+
+	/**
+	 * Komprimiert das Journal und schliet es. Ein spteres {@link #append(Checkpoint)} ffnet es wieder.
+	 */
+	@Override
+	public synchronized void close() {
+		compact();
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				log.warning("Cannot close state journal. " + e.toString());
+			}
+			journal = null;
+		}
+	}
+
+	/**
+	 * ffnet das Journal zum Anhngen, z.B. nach {@link #close()} beim erneuten Start des Watchers.
+	 *
+	 * @return false, wenn das Journal nicht geffnet werden kann
+	 */
+	private boolean openJournal() {
+		try {
+			journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			journal.position(journal.size());
+			return true;
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Cannot open state journal.", e);
+			if (journal != null) {
+				try {
+					journal.close();
+				} catch (IOException ignore) {
+					// schon ein Fehler gemeldet
+				}
+			}
+			journal = null;
+			return false;
+		}
+	}
+
+	/**
+	 * Ermittelt die Identitt eines Files. Damit wird erkannt, ob unter dem gleichen Namen
+	 * inzwischen ein anderes File liegt.
+	 *
+	 * @param file das File
+	 * @return Identitt des Files, "" wenn das File nicht existiert
+	 */
+	public static String fileIdentity(Path file) {
+		try {
+			final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			final Object key = attributes.fileKey();
+			if (key != null) {
+				return key.toString();
+			}
+			return "created:" + attributes.creationTime().toMillis();
+		} catch (IOException e) {
+			return "";
+		}
+	}
+
+	private Checkpoint readSnapshot() {
+		final Properties state = new Properties();
+		try (InputStream in = Files.newInputStream(snapshotFile)) {
+			state.load(in);
+		} catch (IOException e) {
+			log.warning("State file not found, using defaults.");
+			return null;
+		}
+
+		final String offset = state.getProperty(STATE_LAST_OFFSET);
+		try {
+			return new Checkpoint(state.getProperty(STATE_LAST_FILE, ""),
+					state.getProperty(STATE_FILE_IDENTITY, ""),
+					offset == null ? -1 : Long.parseLong(offset.trim()),
+					state.getProperty(STATE_CURRENT_SYSTEM, ""),
+					Integer.parseInt(state.getProperty(STATE_LAST_MATCH, "0").trim()));
+		} catch (NumberFormatException e) {
+			// abgeschnittener oder von Hand genderter Snapshot, wie ein fehlender behandeln
+			log.warning("State file is corrupt, using defaults. " + e.toString());
+			return null;
+		}
+	}
+
+	private void writeSnapshot(Checkpoint checkpoint) throws IOException {
+		final Properties state = new Properties();
+		state.put(STATE_LAST_FILE, checkpoint.getFile());
+		state.put(STATE_FILE_IDENTITY, checkpoint.getFileIdentity());
+		state.put(STATE_LAST_OFFSET, String.valueOf(checkpoint.getOffset()));
+		state.put(STATE_CURRENT_SYSTEM, checkpoint.getSystem());
+
+		final Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			final OutputStream out = Channels.newOutputStream(channel);
+			state.store(out, "State of GameLogFileParser");
+			out.flush();
+			channel.force(true);
+		}
+		try {
+			Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private ByteBuffer encode(Checkpoint checkpoint) throws IOException {
+		recordBytes.reset();
+		// Platzhalter fr die Lnge
+		recordOut.writeInt(0);
+		recordOut.writeUTF(checkpoint.getFile());
+		recordOut.writeUTF(checkpoint.getFileIdentity());
+		recordOut.writeLong(checkpoint.getOffset());
+		recordOut.writeUTF(checkpoint.getSystem());
+		recordOut.flush();
+
+		final int payload = recordBytes.size() - 4;
+		crc.reset();
+		crc.update(recordBytes.array(), 4, payload);
+		recordOut.writeInt((int) crc.getValue());
+		recordOut.flush();
+		recordBytes.putInt(0, payload);
+		return recordBytes.buffer();
+	}
+
+	/**
+	 * Liest einen Datensatz.
+	 *
+	 * @return der Checkpoint, null am Ende des Journals oder bei einem unvollstndigen Datensatz
+	 */
+	private Checkpoint readRecord(DataInputStream in) throws IOException {
+		final byte[] payload;
+		final int checksum;
+		try {
+			final int length = in.readInt();
+			if (length <= 0 || length > 64 * 1024) {
+				return null;
+			}
+			payload = new byte[length];
+			in.readFully(payload);
+			checksum = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+
+		crc.reset();
+		crc.update(payload, 0, payload.length);
+		if ((int) crc.getValue() != checksum) {
+			return null;
+		}
+		lastRecordLength = payload.length + 8;
+
+		final DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+		return new Checkpoint(data.readUTF(), data.readUTF(), data.readLong(), data.readUTF());
+	}
+
+	/**
+	 * Puffer fr einen Datensatz, der ohne Kopie als ByteBuffer geschrieben wird.
+	 * Wchst nur, wenn ein Datensatz nicht hineinpasst.
+	 */
+	private static class RecordBuffer extends ByteArrayOutputStream {
+		private ByteBuffer view;
+
+		RecordBuffer(int size) {
+			super(size);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+
+		void putInt(int index, int value) {
+			buf[index]     = (byte) (value >>> 24);
+			buf[index + 1] = (byte) (value >>> 16);
+			buf[index + 2] = (byte) (value >>> 8);
+			buf[index + 3] = (byte) value;
+		}
+
+		/**
+		 * @return der Inhalt als ByteBuffer, gltig bis zum nchsten Schreiben
+		 */
+		ByteBuffer buffer() {
+			if (view == null || view.array() != buf) {
+				view = ByteBuffer.wrap(buf);
+			}
+			view.clear();
+			view.limit(count);
+			return view;
+		}
+	}
+}
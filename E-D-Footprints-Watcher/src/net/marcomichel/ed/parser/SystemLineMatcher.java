@@ -0,0 +1,152 @@
+package net.marcomichel.ed.parser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Prft, ob eine Zeile des Log-Files der Eintrag ist, in dem das System steht, in dem der Spieler sich befindet.<p>
+ *
+ * Beispiel: {18:51:11} System:20(Eravate) Body:34 Pos:(-912.113,387.702,-133.182)<p>
+ *
+ * Der Matcher arbeitet direkt auf den Bytes der Zeile und entspricht dem regulren Ausdruck
+ * <code>\{\d+:\d+:\d+\} System:\d+\(([^)]+)\).*</code>. Zeilen, die nicht passen, werden in der Regel
+ * schon nach dem ersten Byte verworfen. Es werden keine Objekte erzeugt, ein String mit dem Namen
+ * des Systems wird nur ber {@link #getSystemName(ByteBuffer, Charset)} erzeugt.<p>
+ *
+ * Achtung: Die Klasse ist stateful und nicht thread-safe. Nach einem Treffer stehen Anfang und Ende
+ * des Systemnamens bis zum nchsten Aufruf von {@link #matches(ByteBuffer, int, int)} zur Verfgung.
+ *
+ * @author Marco Michel
+ */
+public class SystemLineMatcher {
+
+	private static final byte[] SYSTEM_MARKER = { '}', ' ', 'S', 'y', 's', 't', 'e', 'm', ':' };
+
+	// Anfang und Ende (exklusiv) des Systemnamens im Puffer nach einem Treffer
+	private int nameStart = -1;
+	private int nameEnd = -1;
+
+	/**
+	 * Prft, ob die Bytes zwischen start und end ein Systemeintrag sind.
+	 *
+	 * @param buffer Puffer mit der Zeile, wird nur mit absoluten Zugriffen gelesen
+	 * @param start Index des ersten Bytes der Zeile
+	 * @param end Index hinter dem letzten Byte der Zeile, ohne Zeilenende
+	 * @return true, wenn die Zeile ein Systemeintrag ist
+	 */
+	public boolean matches(ByteBuffer buffer, int start, int end) {
+		nameStart = -1;
+		nameEnd = -1;
+
+		int i = start;
+		if (i >= end || buffer.get(i++) != '{') {
+			return false;
+		}
+		// Uhrzeit hh:mm:ss
+		if ((i = skipDigits(buffer, i, end)) < 0 || i >= end || buffer.get(i++) != ':') {
+			return false;
+		}
+		if ((i = skipDigits(buffer, i, end)) < 0 || i >= end || buffer.get(i++) != ':') {
+			return false;
+		}
+		if ((i = skipDigits(buffer, i, end)) < 0) {
+			return false;
+		}
+		// "} System:"
+		if (end - i < SYSTEM_MARKER.length) {
+			return false;
+		}
+		for (int m = 0; m < SYSTEM_MARKER.length; m++) {
+			if (buffer.get(i++) != SYSTEM_MARKER[m]) {
+				return false;
+			}
+		}
+		// Nummer und "(Name)"
+		if ((i = skipDigits(buffer, i, end)) < 0 || i >= end || buffer.get(i++) != '(') {
+			return false;
+		}
+		final int first = i;
+		while (i < end && buffer.get(i) != ')') {
+			i++;
+		}
+		if (i >= end || i == first) {
+			return false;
+		}
+
+		nameStart = first;
+		nameEnd = i;
+		return true;
+	}
+
+	/**
+	 * berspringt mindestens eine Ziffer.
+	 *
+	 * @return Index hinter der letzten Ziffer, -1 wenn an der Stelle keine Ziffer steht
+	 */
+	private static int skipDigits(ByteBuffer buffer, int i, int end) {
+		final int first = i;
+		while (i < end) {
+			final byte b = buffer.get(i);
+			if (b < '0' || b > '9') {
+				break;
+			}
+			i++;
+		}
+		return i == first ? -1 : i;
+	}
+
+	/**
+	 * Vergleicht den Systemnamen des letzten Treffers mit einem bereits kodierten Namen.
+	 *
+	 * @param buffer Puffer, der beim Aufruf von matches bergeben wurde
+	 * @param name kodierter Name, mit dem verglichen wird
+	 * @return true, wenn der Name gleich ist
+	 */
+	public boolean isSystemName(ByteBuffer buffer, byte[] name) {
+		if (nameStart < 0 || nameEnd - nameStart != name.length) {
+			return false;
+		}
+		for (int i = 0; i < name.length; i++) {
+			if (buffer.get(nameStart + i) != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Erzeugt den Systemnamen des letzten Treffers.
+	 *
+	 * @param buffer Puffer, der beim Aufruf von matches bergeben wurde
+	 * @param charset Charset, mit dem der Name dekodiert wird
+	 * @return der Systemname
+	 */
+	public String getSystemName(ByteBuffer buffer, Charset charset) {
+		if (nameStart < 0) {
+			throw new IllegalStateException("No match.");
+		}
+		final int length = nameEnd - nameStart;
+		if (buffer.hasArray()) {
+			return new String(buffer.array(), buffer.arrayOffset() + nameStart, length, charset);
+		}
+		final byte[] name = new byte[length];
+		for (int i = 0; i < length; i++) {
+			name[i] = buffer.get(nameStart + i);
+		}
+		return new String(name, charset);
+	}
+
+	/**
+	 * @return Index des ersten Bytes des Systemnamens im Puffer, -1 wenn es keinen Treffer gab
+	 */
+	public int getNameStart() {
+		return nameStart;
+	}
+
+	/**
+	 * @return Index hinter dem letzten Byte des Systemnamens im Puffer, -1 wenn es keinen Treffer gab
+	 */
+	public int getNameEnd() {
+		return nameEnd;
+	}
+}
@@ -0,0 +1,241 @@
+package net.marcomichel.ed.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ndert ein Attribut eines Elements in einem XML-File, ohne das File zu parsen.<p>
+ *
+ * Die Bytes werden von der Eingabe in die Ausgabe kopiert. Nur das Start-Tag des ersten passenden Elements
+ * wird gepuffert und darin der Wert des Attributs ersetzt, fehlt das Attribut, wird es angehngt. Kommentare,
+ * CDATA, Processing Instructions, Einrckung und Zeilenenden bleiben Byte fr Byte erhalten. Der Speicherbedarf
+ * hngt nur von der Lnge des Tags ab, nicht von der Gre des Files.<p>
+ *
+ * Das File muss in einer Kodierung vorliegen, die ASCII enthlt, z.B. UTF-8 oder ISO-8859-1.
+ *
+ * @author Marco Michel
+ */
+public final class XmlAttributeRewriter {
+
+	private static final int COMMENT_END = ('-' << 16) | ('-' << 8) | '>';
+	private static final int CDATA_END   = (']' << 16) | (']' << 8) | '>';
+	private static final int PI_END      = ('?' << 8) | '>';
+
+	private XmlAttributeRewriter() {
+	}
+
+	/**
+	 * Kopiert das XML und setzt dabei das Attribut im ersten Element mit dem Namen.
+	 *
+	 * @param in Eingabe, sollte gepuffert sein
+	 * @param out Ausgabe, sollte gepuffert sein
+	 * @param element Name des Elements, ohne Namespace-Prefix
+	 * @param attribute Name des Attributs
+	 * @param value neuer Wert, wird nicht escaped
+	 * @return false, wenn kein Element mit dem Namen gefunden wurde, die Ausgabe ist dann eine Kopie der Eingabe
+	 * @throws IOException wenn nicht gelesen oder geschrieben werden kann
+	 */
+	public static boolean rewrite(InputStream in, OutputStream out, String element, String attribute, String value) throws IOException {
+		final byte[] elementName = element.getBytes(StandardCharsets.UTF_8);
+		final ByteArrayOutputStream tag = new ByteArrayOutputStream(256);
+		int b;
+		while ((b = in.read()) != -1) {
+			out.write(b);
+			if (b != '<') {
+				continue;
+			}
+			final int c = in.read();
+			if (c == -1) {
+				break;
+			}
+			if (c == '!') {
+				out.write(c);
+				copyDeclaration(in, out);
+			} else if (c == '?') {
+				out.write(c);
+				copyUntil(in, out, PI_END, 2);
+			} else if (c == '/') {
+				out.write(c);
+			} else {
+				// Start-Tag bis zum schlieenden > auerhalb von Anfhrungszeichen puffern
+				tag.reset();
+				tag.write(c);
+				readTag(in, tag);
+				final byte[] bytes = tag.toByteArray();
+				if (hasName(bytes, elementName)) {
+					out.write(setAttribute(bytes, attribute, value));
+					copyRest(in, out);
+					return true;
+				}
+				out.write(bytes);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Kopiert Kommentar, CDATA oder DOCTYPE nach &lt;!.
+	 */
+	private static void copyDeclaration(InputStream in, OutputStream out) throws IOException {
+		final int c = in.read();
+		if (c == -1) {
+			return;
+		}
+		out.write(c);
+		if (c == '-') {
+			copyUntil(in, out, COMMENT_END, 3);
+		} else if (c == '[') {
+			copyUntil(in, out, CDATA_END, 3);
+		} else {
+			// DOCTYPE, ein interner Teil in [] darf > enthalten
+			int depth = 0;
+			int b;
+			while ((b = in.read()) != -1) {
+				out.write(b);
+				if (b == '[') {
+					depth++;
+				} else if (b == ']') {
+					depth--;
+				} else if (b == '>' && depth <= 0) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Kopiert bis einschlielich der Endmarke, die aus length Bytes in einem int gepackt ist.
+	 */
+	private static void copyUntil(InputStream in, OutputStream out, int end, int length) throws IOException {
+		final int mask = (1 << (length * 8)) - 1;
+		int window = 0;
+		int b;
+		while ((b = in.read()) != -1) {
+			out.write(b);
+			window = ((window << 8) | b) & mask;
+			if (window == end) {
+				return;
+			}
+		}
+	}
+
+	private static void readTag(InputStream in, ByteArrayOutputStream tag) throws IOException {
+		int quote = 0;
+		int b;
+		while ((b = in.read()) != -1) {
+			tag.write(b);
+			if (quote != 0) {
+				if (b == quote) {
+					quote = 0;
+				}
+			} else if (b == '"' || b == '\'') {
+				quote = b;
+			} else if (b == '>') {
+				return;
+			}
+		}
+	}
+
+	private static boolean hasName(byte[] tag, byte[] name) {
+		// ein Namespace-Prefix wird ignoriert
+		int end = 0;
+		while (end < tag.length && !isNameEnd(tag[end])) {
+			end++;
+		}
+		int start = 0;
+		for (int i = 0; i < end; i++) {
+			if (tag[i] == ':') {
+				start = i + 1;
+			}
+		}
+		return equals(tag, start, end, name);
+	}
+
+	private static boolean isNameEnd(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '/' || b == '>';
+	}
+
+	/**
+	 * @param tag Start-Tag ohne das ffnende &lt;, mit dem schlieenden &gt;
+	 * @return das Tag mit dem neuen Wert des Attributs
+	 */
+	private static byte[] setAttribute(byte[] tag, String attribute, String value) {
+		final byte[] name = attribute.getBytes(StandardCharsets.UTF_8);
+		final byte[] newValue = value.getBytes(StandardCharsets.UTF_8);
+		int i = 0;
+		while (i < tag.length && !isNameEnd(tag[i])) {
+			i++;
+		}
+		while (true) {
+			while (i < tag.length && isSpace(tag[i])) {
+				i++;
+			}
+			if (i >= tag.length || tag[i] == '/' || tag[i] == '>') {
+				break;
+			}
+			final int nameStart = i;
+			while (i < tag.length && tag[i] != '=' && !isNameEnd(tag[i])) {
+				i++;
+			}
+			final int nameEnd = i;
+			while (i < tag.length && (isSpace(tag[i]) || tag[i] == '=')) {
+				i++;
+			}
+			if (i >= tag.length || (tag[i] != '"' && tag[i] != '\'')) {
+				// kaputtes Attribut, unverndert lassen und das neue anhngen
+				break;
+			}
+			final byte quote = tag[i];
+			final int valueStart = ++i;
+			while (i < tag.length && tag[i] != quote) {
+				i++;
+			}
+			final int valueEnd = i++;
+			if (equals(tag, nameStart, nameEnd, name)) {
+				final ByteArrayOutputStream result = new ByteArrayOutputStream(tag.length + newValue.length);
+				result.write(tag, 0, valueStart);
+				result.write(newValue, 0, newValue.length);
+				result.write(tag, valueEnd, tag.length - valueEnd);
+				return result.toByteArray();
+			}
+		}
+		// Attribut fehlt, vor /> bzw. > einfgen
+		int insert = tag.length - 1;
+		if (insert > 0 && tag[insert - 1] == '/') {
+			insert--;
+		}
+		final byte[] added = (" " + attribute + "=\"" + value + "\"").getBytes(StandardCharsets.UTF_8);
+		final ByteArrayOutputStream result = new ByteArrayOutputStream(tag.length + added.length);
+		result.write(tag, 0, insert);
+		result.write(added, 0, added.length);
+		result.write(tag, insert, tag.length - insert);
+		return result.toByteArray();
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	private static boolean equals(byte[] bytes, int start, int end, byte[] name) {
+		if (end - start != name.length) {
+			return false;
+		}
+		for (int i = 0; i < name.length; i++) {
+			if (bytes[start + i] != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void copyRest(InputStream in, OutputStream out) throws IOException {
+		final byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+	}
+}
@@ -0,0 +1,586 @@
+package net.marcomichel.ed.stub;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Lokaler Ersatz fr den E:D-Footprints Server fr Last- und Latenztests.<p>
+ *
+ * Bietet die Endpunkte /ping, /register und /publish so an, wie der Watcher sie benutzt, incl. gzip-komprimierter
+ * Batches, und /stream fr den {@link net.marcomichel.ed.watcher.util.EventStream}. Latenz, Fehlerrate und
+ * maximaler Durchsatz sind einstellbar. Alle empfangenen Events werden aufgezeichnet, im Speicher und optional als
+ * eine Zeile pro Event in einem File. Events mit einer eventId, die schon empfangen wurde, werden wie vom echten
+ * Server angenommen, aber nur als Duplikat gezhlt. Unter /stats gibt es die Zhler und die Bearbeitungszeiten als
+ * JSON.<p>
+ *
+ * Start auf dem Port aus der Standard-Config (server-url=http://localhost:9080):
+ * <pre>
+ * java -cp bin:lib/* net.marcomichel.ed.stub.StubServer --port=9080 --latency=50 --jitter=20 --error-rate=0.05 --max-rps=200 --record=stub-events.log
+ * </pre>
+ *
+ * @author Marco Michel
+ */
+public class StubServer {
+
+	private static final Logger log = Logger.getLogger(StubServer.class.getName());
+
+	// Anzahl der Bearbeitungszeiten, aus denen die Perzentile berechnet werden
+	private static final int LATENCY_SAMPLES = 10000;
+
+	private final int port;
+	private HttpServer server;
+	private ExecutorService executor;
+
+	// Einstellungen
+	private volatile long latencyMillis = 0;
+	private volatile long jitterMillis = 0;
+	private volatile double errorRate = 0;
+	private volatile int maxRequestsPerSecond = 0;
+	private volatile boolean acceptBatches = true;
+	private volatile boolean acceptStreams = true;
+	private Writer recordWriter = null;
+
+	// nchster freier Zeitpunkt fr einen Request, wenn der Durchsatz begrenzt ist
+	private long nextSlot = 0;
+
+	// Aufzeichnung
+	private final List<String> events = new ArrayList<String>();
+	private final Set<Object> eventIds = new HashSet<Object>();
+	private long duplicates = 0;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong registrations = new AtomicLong();
+	private final AtomicLong streams = new AtomicLong();
+	private final AtomicLong heartbeats = new AtomicLong();
+	private final long[] latencies = new long[LATENCY_SAMPLES];
+	private long latencyCount = 0;
+	private long firstEvent = 0;
+	private long lastEvent = 0;
+
+	/**
+	 * @param port Port, auf dem der Server lauscht, 0 fr einen freien Port
+	 */
+	public StubServer(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Startet den Server.
+	 *
+	 * @throws IOException wenn der Port nicht geffnet werden kann
+	 */
+	public void start() throws IOException {
+		// Ohne TCP_NODELAY bremst Nagle zusammen mit Delayed ACK jede Keep-Alive Verbindung auf ~40 ms pro Request
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		server = HttpServer.create(new InetSocketAddress(port), 50);
+		server.createContext("/ping", handler(this::ping));
+		server.createContext("/register", handler(this::register));
+		server.createContext("/publish", handler(this::publish));
+		server.createContext("/stream", this::stream);
+		server.createContext("/stats", this::stats);
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.start();
+		log.info("Stub server listening on port " + getPort());
+	}
+
+	/**
+	 * Stoppt den Server und schliet das File mit der Aufzeichnung.
+	 */
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+			server = null;
+		}
+		synchronized (events) {
+			if (recordWriter != null) {
+				try {
+					recordWriter.close();
+				} catch (IOException e) {
+					log.warning("Cannot close record file. " + e.toString());
+				}
+				recordWriter = null;
+			}
+		}
+		log.info("Stub server stopped. " + getStats().toJSONString());
+	}
+
+	/**
+	 * @return Port, auf dem der Server lauscht
+	 */
+	public int getPort() {
+		return server != null ? server.getAddress().getPort() : port;
+	}
+
+	/**
+	 * @param latencyMillis feste Verzgerung jeder Response in ms
+	 * @param jitterMillis zustzliche zufllige Verzgerung zwischen 0 und jitterMillis
+	 */
+	public void setLatency(long latencyMillis, long jitterMillis) {
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+	}
+
+	/**
+	 * @param errorRate Anteil der Requests zwischen 0 und 1, die mit 503 beantwortet werden
+	 */
+	public void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * @param maxRequestsPerSecond maximale Anzahl Requests pro Sekunde, weitere werden verzgert. 0 fr unbegrenzt
+	 */
+	public void setMaxRequestsPerSecond(int maxRequestsPerSecond) {
+		this.maxRequestsPerSecond = maxRequestsPerSecond;
+	}
+
+	/**
+	 * @param acceptBatches false, wenn Batches wie bei einem alten Server mit 400 abgelehnt werden sollen
+	 */
+	public void setAcceptBatches(boolean acceptBatches) {
+		this.acceptBatches = acceptBatches;
+	}
+
+	/**
+	 * @param acceptStreams false, wenn /stream wie bei einem alten Server mit 404 abgelehnt werden soll
+	 */
+	public void setAcceptStreams(boolean acceptStreams) {
+		this.acceptStreams = acceptStreams;
+	}
+
+	/**
+	 * @return Anzahl der Heartbeats, die ber Streams empfangen wurden
+	 */
+	public long getHeartbeatCount() {
+		return heartbeats.get();
+	}
+
+	/**
+	 * @return Anzahl der Streams, die geffnet wurden
+	 */
+	public long getStreamCount() {
+		return streams.get();
+	}
+
+	/**
+	 * @param file File, an das jedes empfangene Event als eine Zeile JSON angehngt wird
+	 * @throws IOException wenn das File nicht geffnet werden kann
+	 */
+	public void setRecordFile(String file) throws IOException {
+		synchronized (events) {
+			recordWriter = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * @return Kopie aller bisher empfangenen Events als JSON, in der Reihenfolge des Empfangs
+	 */
+	public List<String> getReceivedEvents() {
+		synchronized (events) {
+			return new ArrayList<String>(events);
+		}
+	}
+
+	/**
+	 * @return Anzahl der Events, deren eventId schon empfangen wurde
+	 */
+	public long getDuplicateCount() {
+		synchronized (events) {
+			return duplicates;
+		}
+	}
+
+	/**
+	 * @return Anzahl aller Requests
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return Anzahl der absichtlich mit 503 beantworteten Requests
+	 */
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	/**
+	 * Ein Endpunkt, der nach Drosselung, Latenz und Fehlern den Body bekommt.
+	 */
+	private interface Endpoint {
+		/**
+		 * @return Status-Code und Body der Response
+		 */
+		Response handle(HttpExchange exchange, byte[] body) throws IOException;
+	}
+
+	private static class Response {
+		final int status;
+		final String body;
+
+		Response(int status, String body) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+	private HttpHandler handler(Endpoint endpoint) {
+		return exchange -> {
+			final long start = System.nanoTime();
+			try {
+				requests.incrementAndGet();
+				final byte[] body = readBody(exchange);
+				throttle();
+				delay();
+				final Response response;
+				if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+					errors.incrementAndGet();
+					response = new Response(503, "Injected error");
+				} else {
+					response = endpoint.handle(exchange, body);
+				}
+				send(exchange, response);
+			} catch (IOException | RuntimeException e) {
+				log.log(Level.WARNING, "Error handling " + exchange.getRequestURI(), e);
+				send(exchange, new Response(500, e.toString()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				exchange.close();
+				recordLatency(System.nanoTime() - start);
+			}
+		};
+	}
+
+	private static byte[] readBody(HttpExchange exchange) throws IOException {
+		InputStream is = exchange.getRequestBody();
+		if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+			is = new GZIPInputStream(is);
+		}
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[8192];
+		int read;
+		while ((read = is.read(buffer)) != -1) {
+			body.write(buffer, 0, read);
+		}
+		return body.toByteArray();
+	}
+
+	private static void send(HttpExchange exchange, Response response) throws IOException {
+		final byte[] bytes = response.body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+		exchange.sendResponseHeaders(response.status, bytes.length == 0 ? -1 : bytes.length);
+		if (bytes.length > 0) {
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(bytes);
+			}
+		}
+	}
+
+	/**
+	 * Verzgert den Request, bis er nach dem maximalen Durchsatz an der Reihe ist.
+	 */
+	private void throttle() throws InterruptedException {
+		final int rps = maxRequestsPerSecond;
+		if (rps <= 0) {
+			return;
+		}
+		final long slot;
+		synchronized (this) {
+			final long now = System.nanoTime();
+			slot = Math.max(now, nextSlot);
+			nextSlot = slot + TimeUnit.SECONDS.toNanos(1) / rps;
+		}
+		final long wait = slot - System.nanoTime();
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	private void delay() throws InterruptedException {
+		long millis = latencyMillis;
+		if (jitterMillis > 0) {
+			millis += ThreadLocalRandom.current().nextLong(jitterMillis + 1);
+		}
+		if (millis > 0) {
+			Thread.sleep(millis);
+		}
+	}
+
+	private Response ping(HttpExchange exchange, byte[] body) {
+		return new Response(200, "");
+	}
+
+	private Response register(HttpExchange exchange, byte[] body) throws IOException {
+		final Object json = parse(body);
+		if (!(json instanceof JSONObject) || ((JSONObject) json).get("cmdr") == null) {
+			return new Response(400, "Missing cmdr");
+		}
+		registrations.incrementAndGet();
+		record(((JSONObject) json).toJSONString());
+		return new Response(200, UUID.randomUUID().toString());
+	}
+
+	private Response publish(HttpExchange exchange, byte[] body) throws IOException {
+		final Object json = parse(body);
+		if (json instanceof JSONArray) {
+			if (!acceptBatches) {
+				return new Response(400, "Batches not supported");
+			}
+			batches.incrementAndGet();
+			for (Object event : (JSONArray) json) {
+				if (!(event instanceof JSONObject)) {
+					return new Response(400, "Invalid event in batch");
+				}
+			}
+			for (Object event : (JSONArray) json) {
+				recordEvent((JSONObject) event);
+			}
+		} else if (json instanceof JSONObject) {
+			recordEvent((JSONObject) json);
+		} else {
+			return new Response(400, "Invalid event");
+		}
+		return new Response(200, "ok");
+	}
+
+	/**
+	 * Nimmt Events als NDJSON an und besttigt jede Zeile mit "ok" oder "error", bis der Client den Request beendet.
+	 * Leere Zeilen sind Heartbeats. Latenz, Drosselung und Fehlerrate gelten fr jede Gruppe von Zeilen, die zusammen
+	 * ankommt, wie fr einen Request. Bei einem Fehler bekommen alle Events der Gruppe "error".
+	 */
+	private void stream(HttpExchange exchange) throws IOException {
+		try {
+			if (!acceptStreams) {
+				send(exchange, new Response(404, "Streaming not supported"));
+				return;
+			}
+			streams.incrementAndGet();
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+			exchange.sendResponseHeaders(200, 0);
+			final OutputStream os = exchange.getResponseBody();
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+			long start = 0;
+			boolean failGroup = false;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (start == 0) {
+					// erste Zeile einer Gruppe, die Wartezeit davor zhlt nicht
+					start = System.nanoTime();
+					failGroup = errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+					if (failGroup) {
+						errors.incrementAndGet();
+					}
+				}
+				final String ack;
+				if (line.isEmpty()) {
+					heartbeats.incrementAndGet();
+					ack = "ok";
+				} else {
+					ack = failGroup ? "error Injected error" : streamEvent(line);
+				}
+				os.write((ack + "\n").getBytes(StandardCharsets.UTF_8));
+				if (!reader.ready()) {
+					throttle();
+					delay();
+					os.flush();
+					recordLatency(System.nanoTime() - start);
+					start = 0;
+				}
+			}
+			os.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			log.fine("Stream closed. " + e.toString());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private String streamEvent(String line) throws IOException {
+		final Object json = parse(line.getBytes(StandardCharsets.UTF_8));
+		if (!(json instanceof JSONObject)) {
+			return "error Invalid event";
+		}
+		recordEvent((JSONObject) json);
+		return "ok";
+	}
+
+	private static Object parse(byte[] body) throws IOException {
+		try {
+			return new JSONParser().parse(new String(body, StandardCharsets.UTF_8));
+		} catch (ParseException e) {
+			return null;
+		}
+	}
+
+	private void recordEvent(JSONObject event) throws IOException {
+		final Object eventId = event.get("eventId");
+		if (eventId != null) {
+			synchronized (events) {
+				if (!eventIds.add(eventId)) {
+					duplicates++;
+					return;
+				}
+			}
+		}
+		record(event.toJSONString());
+	}
+
+	private void record(String event) throws IOException {
+		synchronized (events) {
+			events.add(event);
+			lastEvent = System.currentTimeMillis();
+			if (firstEvent == 0) {
+				firstEvent = lastEvent;
+			}
+			if (recordWriter != null) {
+				recordWriter.write(event);
+				recordWriter.write('\n');
+				recordWriter.flush();
+			}
+		}
+	}
+
+	private synchronized void recordLatency(long nanos) {
+		latencies[(int) (latencyCount++ % LATENCY_SAMPLES)] = nanos;
+	}
+
+	/**
+	 * @return Zhler, Durchsatz und Bearbeitungszeiten der letzten Requests
+	 */
+	@SuppressWarnings("unchecked")
+	public JSONObject getStats() {
+		final JSONObject stats = new JSONObject();
+		final long received;
+		final long duration;
+		final long duplicated;
+		synchronized (events) {
+			received = events.size();
+			duration = lastEvent - firstEvent;
+			duplicated = duplicates;
+		}
+		stats.put("requests", requests.get());
+		stats.put("events", received);
+		stats.put("duplicates", duplicated);
+		stats.put("batches", batches.get());
+		stats.put("streams", streams.get());
+		stats.put("heartbeats", heartbeats.get());
+		stats.put("registrations", registrations.get());
+		stats.put("errors", errors.get());
+		stats.put("eventsPerSecond", duration > 0 ? received * 1000 / duration : 0);
+
+		final long[] sorted;
+		synchronized (this) {
+			sorted = Arrays.copyOf(latencies, (int) Math.min(latencyCount, LATENCY_SAMPLES));
+		}
+		Arrays.sort(sorted);
+		stats.put("p50Micros", percentile(sorted, 0.50));
+		stats.put("p99Micros", percentile(sorted, 0.99));
+		stats.put("maxMicros", sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1000);
+		return stats;
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)] / 1000;
+	}
+
+	private void stats(HttpExchange exchange) throws IOException {
+		try {
+			exchange.getRequestBody().close();
+			final byte[] bytes = getStats().toJSONString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+			exchange.sendResponseHeaders(200, bytes.length);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(bytes);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Startet den Stub-Server.<p>
+	 *
+	 * Parameter: --port=9080 --latency=ms --jitter=ms --error-rate=0..1 --max-rps=n --no-batch --no-stream --record=file
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = 9080;
+		final List<String> rest = new ArrayList<String>();
+		for (String arg : args) {
+			if (arg.startsWith("--port=")) {
+				port = Integer.parseInt(arg.substring(7));
+			} else {
+				rest.add(arg);
+			}
+		}
+		final StubServer stub = new StubServer(port);
+		long latency = 0;
+		long jitter = 0;
+		for (String arg : rest) {
+			if (arg.startsWith("--latency=")) {
+				latency = Long.parseLong(arg.substring(10));
+			} else if (arg.startsWith("--jitter=")) {
+				jitter = Long.parseLong(arg.substring(9));
+			} else if (arg.startsWith("--error-rate=")) {
+				stub.setErrorRate(Double.parseDouble(arg.substring(13)));
+			} else if (arg.startsWith("--max-rps=")) {
+				stub.setMaxRequestsPerSecond(Integer.parseInt(arg.substring(10)));
+			} else if (arg.equals("--no-batch")) {
+				stub.setAcceptBatches(false);
+			} else if (arg.equals("--no-stream")) {
+				stub.setAcceptStreams(false);
+			} else if (arg.startsWith("--record=")) {
+				stub.setRecordFile(arg.substring(9));
+			} else {
+				System.err.println("Unknown parameter " + arg);
+				System.err.println("Parameters: --port=9080 --latency=ms --jitter=ms --error-rate=0..1 --max-rps=n --no-batch --no-stream --record=file");
+				return;
+			}
+		}
+		stub.setLatency(latency, jitter);
+		Runtime.getRuntime().addShutdownHook(new Thread(stub::stop));
+		stub.start();
+	}
+}
@@ -0,0 +1,140 @@
+package net.marcomichel.ed.util;
+
+import java.util.Arrays;
+
+/**
+ * Menge von long-Werten ohne Boxing.<p>
+ *
+ * Offene Adressierung mit linearem Sondieren in einem einzigen long-Array. Der Wert 0 markiert einen freien
+ * Platz und kann daher nicht gespeichert werden. Ist das Array zur Hlfte gefllt, wird es verdoppelt.
+ * Beim Entfernen werden die folgenden Eintrge zurckgeschoben, es bleiben also keine Grabsteine zurck.<p>
+ *
+ * Die Klasse ist nicht thread-safe.
+ *
+ * @author Marco Michel
+ */
+public class LongHashSet {
+
+	private long[] table;
+	private int mask;
+	private int size = 0;
+
+	/**
+	 * @param expectedSize erwartete Anzahl Werte, bis dahin wird das Array nicht vergrert
+	 */
+	public LongHashSet(int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		table = new long[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * @param value Wert, nicht 0
+	 * @return true, wenn der Wert neu ist
+	 */
+	public boolean add(long value) {
+		checkValue(value);
+		int i = index(value);
+		while (table[i] != 0) {
+			if (table[i] == value) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		table[i] = value;
+		if (++size * 2 > table.length) {
+			grow();
+		}
+		return true;
+	}
+
+	/**
+	 * @param value Wert, nicht 0
+	 * @return true, wenn der Wert enthalten ist
+	 */
+	public boolean contains(long value) {
+		checkValue(value);
+		int i = index(value);
+		while (table[i] != 0) {
+			if (table[i] == value) {
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	/**
+	 * @param value Wert, nicht 0
+	 * @return true, wenn der Wert enthalten war
+	 */
+	public boolean remove(long value) {
+		checkValue(value);
+		int i = index(value);
+		while (table[i] != value) {
+			if (table[i] == 0) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		// Eintrge hinter dem Loch zurckschieben, wenn ihr Platz laut Hash nicht zwischen Loch und Eintrag liegt
+		int hole = i;
+		int j = (i + 1) & mask;
+		while (table[j] != 0) {
+			final int home = index(table[j]);
+			if (((j - home) & mask) >= ((j - hole) & mask)) {
+				table[hole] = table[j];
+				hole = j;
+			}
+			j = (j + 1) & mask;
+		}
+		table[hole] = 0;
+		size--;
+		return true;
+	}
+
+	/**
+	 * @return Anzahl der Werte
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Entfernt alle Werte.
+	 */
+	public void clear() {
+		Arrays.fill(table, 0);
+		size = 0;
+	}
+
+	private int index(long value) {
+		// Bits mischen, die Werte sind nicht unbedingt schon Hashes
+		final long h = value * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private void grow() {
+		final long[] old = table;
+		table = new long[old.length * 2];
+		mask = table.length - 1;
+		for (long value : old) {
+			if (value != 0) {
+				int i = index(value);
+				while (table[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				table[i] = value;
+			}
+		}
+	}
+
+	private static void checkValue(long value) {
+		if (value == 0) {
+			throw new IllegalArgumentException("0 cannot be stored in LongHashSet");
+		}
+	}
+}
@@ -6,6 +6,7 @@ import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -14,8 +15,16 @@ import java.nio.file.WatchEvent;
 import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,7 +32,19 @@ import java.util.logging.Logger;
  * Abstrakte Klasse um Verzeichnisse auf Vernderugnen zu berwachen.<p>
  *
  * Bei Create und Modify Events wird die Methode onModFile aufgerufen, die von abgeleiteten Klassen
- * implementiert werden muss.
+ * implementiert werden muss.<p>
+ *
+ * Mehrere Events fr das gleiche File innerhalb eines Zeitfensters werden zu einem Aufruf zusammengefasst.
+ * onModFile wird immer von dem gleichen Thread aufgerufen, es luft also hchstens ein Aufruf gleichzeitig.
+ * Kommen Events, whrend onModFile fr das File luft, wird es danach noch einmal aufgerufen.<p>
+ *
+ * Der WatchService bekommt keine Modify Events, solange das Spiel luft und den Fokus hat. Das neueste
+ * Log-File wird deshalb zustzlich gepollt: Hat sich seine Gre oder seine Identitt gendert, wird
+ * onModFile aufgerufen. Solange sich das File ndert, wird hufig gepollt, ndert es sich nicht mehr,
+ * wird das Intervall bis zum Scan-Intervall verdoppelt.<p>
+ *
+ * Gehen Events verloren (OVERFLOW), wird das Verzeichnis neu eingelesen und mit dem letzten Stand
+ * verglichen. onModFile wird dann fr alle Files aufgerufen, die neu sind oder sich gendert haben.
  *
  * @author Marco Michel
  *
@@ -33,21 +54,316 @@ public abstract class DirectoryWatcher {
 	private static final Logger log = Logger.getLogger(DirectoryWatcher.class
 			.getName());
 
-	private Path newestFile = null;
-	private Thread touchThread;
+	// Zustand eines Files, fr das Events zusammengefasst werden
+	private enum ParseState { SCHEDULED, RUNNING, RUNNING_DIRTY }
+
+	// Gre und nderungszeit eines Files beim letzten Einlesen des Verzeichnisses
+	private static class FileStat {
+		private final long size;
+		private final long modified;
+
+		FileStat(long size, long modified) {
+			this.size = size;
+			this.modified = modified;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof FileStat)) {
+				return false;
+			}
+			final FileStat other = (FileStat) obj;
+			return size == other.size && modified == other.modified;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(size) * 31 + Long.hashCode(modified);
+		}
+	}
+
+	// krzestes Intervall in ms, in dem das neueste Log-File gepollt wird
+	private static final long MIN_POLL_MILLIS = 250;
+	// wie lange beim Stoppen auf einen laufenden Parse gewartet wird
+	private static final long STOP_TIMEOUT_MILLIS = 30000;
+
+	private volatile Path newestFile = null;
+
+	// lngstes Intervall in ms, in dem das neueste Log-File gepollt wird
+	private volatile long maxPollMillis;
+	// aktuelles Intervall und der Stand des neuesten Log-Files beim letzten Pollen
+	private long pollMillis = MIN_POLL_MILLIS;
+	private Path polledFile = null;
+	private long polledSize = -1;
+	private Object polledKey = null;
+
+	// Thread, der onModFile aufruft
+	private ScheduledExecutorService parseExecutor;
+	// Zeitfenster in ms, in dem Events fr ein File zusammengefasst werden
+	private volatile int debounceMillis;
+	// Files, fr die ein Aufruf von onModFile geplant ist oder gerade luft
+	private final Map<String, ParseState> pendingFiles = new HashMap<String, ParseState>();
+	// Anzahl der Events, die keinen eigenen Aufruf von onModFile ausgelst haben
+	private final AtomicLong savedParses = new AtomicLong();
+
+	// Verzeichnis, das berwacht wird
+	private volatile Path watchedPath = null;
+	// letzter bekannter Stand der Files im Verzeichnis, wird bei jedem Parse eines Files aktualisiert
+	private final Map<String, FileStat> directorySnapshot = new ConcurrentHashMap<String, FileStat>();
+	// Anzahl der OVERFLOW Events
+	private final AtomicLong overflows = new AtomicLong();
+
+	/**
+	 * ndert die Intervalle einer laufenden berwachung. Sie gelten ab dem nchsten Poll bzw. Event.
+	 *
+	 * @param scanIntervall lngstes Intervall in Sekunden, in dem das neueste Log-File gepollt wird
+	 * @param debounceMillis Zeitfenster in ms, in dem Events fr ein File zusammengefasst werden
+	 */
+	protected void setIntervals(int scanIntervall, int debounceMillis) {
+		this.debounceMillis = debounceMillis;
+		maxPollMillis = Math.max(TimeUnit.SECONDS.toMillis(scanIntervall), MIN_POLL_MILLIS);
+	}
+
+	/**
+	 * Stoppt das Parsen und wartet, bis ein laufender Parse fertig ist. Geplante Parses werden verworfen.<p>
+	 *
+	 * Der Thread wird nicht unterbrochen, ein Interrupt wrde die FileChannel schlieen, die er gerade liest
+	 * oder schreibt.
+	 *
+	 * @return true, wenn kein Parse mehr luft und onModFile nicht mehr aufgerufen wird
+	 */
+	protected boolean stopWatchDirectory() {
+		if (parseExecutor == null) {
+			return true;
+		}
+		parseExecutor.shutdown();
+		log.info("Saved " + savedParses.get() + " parses by coalescing modify events.");
+		try {
+			if (!parseExecutor.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				log.warning("Parse still running after " + STOP_TIMEOUT_MILLIS + " ms.");
+				return false;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		synchronized (pendingFiles) {
+			pendingFiles.clear();
+		}
+		return true;
+	}
+
+	/**
+	 * @return Anzahl der Events, die mit anderen zusammengefasst wurden und keinen eigenen Parse ausgelst haben
+	 */
+	public long getSavedParses() {
+		return savedParses.get();
+	}
 
-	protected void stopWatchDirectory() {
-		if (touchThread != null) {
-			touchThread.interrupt();
+	/**
+	 * @return Anzahl der OVERFLOW Events, bei denen Events verloren gegangen sind
+	 */
+	public long getOverflowCount() {
+		return overflows.get();
+	}
+
+	/**
+	 * Liest Gre und nderungszeit aller Files im Verzeichnis.
+	 *
+	 * @param dir das Verzeichnis
+	 * @return Stand der Files, nach Namen
+	 */
+	private static Map<String, FileStat> snapshotDirectory(Path dir) {
+		final Map<String, FileStat> snapshot = new HashMap<String, FileStat>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path file : stream) {
+				try {
+					final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+					if (attributes.isRegularFile()) {
+						snapshot.put(file.getFileName().toString(),
+								new FileStat(attributes.size(), attributes.lastModifiedTime().toMillis()));
+					}
+				} catch (IOException e) {
+					log.finer("Cannot read attributes of " + file + ". " + e.toString());
+				}
+			}
+		} catch (IOException e) {
+			log.warning("Cannot list directory " + dir + ". " + e.toString());
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Merkt sich den aktuellen Stand eines Files als letzten bekannten Stand.
+	 *
+	 * @param file Name des Files im berwachten Verzeichnis
+	 */
+	private void rememberFileStat(String file) {
+		final Path dir = watchedPath;
+		if (dir == null) {
+			return;
+		}
+		try {
+			final BasicFileAttributes attributes = Files.readAttributes(dir.resolve(file), BasicFileAttributes.class);
+			directorySnapshot.put(file, new FileStat(attributes.size(), attributes.lastModifiedTime().toMillis()));
+		} catch (IOException e) {
+			directorySnapshot.remove(file);
 		}
 	}
 
+	/**
+	 * Liest das Verzeichnis nach verlorenen Events neu ein und ruft onModFile fr alle Files auf,
+	 * die sich gegenber dem letzten bekannten Stand gendert haben oder neu sind.<p>
+	 *
+	 * Package-private, damit der Fall ohne echten OVERFLOW getestet werden kann.
+	 *
+	 * @param dir das Verzeichnis
+	 * @return Anzahl der Files, fr die onModFile geplant wurde
+	 */
+	int rescanDirectory(Path dir) {
+		final Map<String, FileStat> snapshot = snapshotDirectory(dir);
+		int changed = 0;
+		for (Map.Entry<String, FileStat> entry : snapshot.entrySet()) {
+			if (!entry.getValue().equals(directorySnapshot.get(entry.getKey()))) {
+				// der neue Stand wird beim Parse gemerkt
+				dispatch(entry.getKey());
+				changed++;
+			}
+		}
+		directorySnapshot.keySet().retainAll(snapshot.keySet());
+		log.fine("Rescan after overflow found " + changed + " changed files.");
+		return changed;
+	}
+
+	/**
+	 * Nimmt ein Event fr ein File entgegen und plant den Aufruf von onModFile.
+	 *
+	 * @param file Das File, das sich gendert hat
+	 */
+	private void dispatch(String file) {
+		synchronized (pendingFiles) {
+			final ParseState state = pendingFiles.get(file);
+			if (state == null) {
+				scheduleParse(file);
+			} else if (state == ParseState.RUNNING) {
+				// nach dem laufenden Parse noch einmal parsen
+				pendingFiles.put(file, ParseState.RUNNING_DIRTY);
+			} else {
+				savedParses.incrementAndGet();
+				log.finest("Coalesced event for file " + file);
+			}
+		}
+	}
+
+	/**
+	 * Plant den Aufruf von onModFile. Ist die berwachung schon gestoppt, wird das File verworfen.
+	 * Muss mit dem Lock auf pendingFiles aufgerufen werden.
+	 *
+	 * @param file Das File, das sich gendert hat
+	 */
+	private void scheduleParse(String file) {
+		if (!parseExecutor.isShutdown()) {
+			try {
+				parseExecutor.schedule(() -> runParse(file), debounceMillis, TimeUnit.MILLISECONDS);
+				pendingFiles.put(file, ParseState.SCHEDULED);
+				return;
+			} catch (RejectedExecutionException e) {
+				// zwischen Prfung und schedule gestoppt
+			}
+		}
+		log.finer("Watching stopped. Dropping event for file " + file);
+		pendingFiles.remove(file);
+	}
+
+	/**
+	 * Ruft onModFile fr ein File auf und plant einen weiteren Aufruf, wenn in der Zwischenzeit Events kamen.
+	 *
+	 * @param file Das File, das sich gendert hat
+	 */
+	private void runParse(String file) {
+		synchronized (pendingFiles) {
+			pendingFiles.put(file, ParseState.RUNNING);
+		}
+		// Stand vor dem Parse merken, sptere nderungen lsen ein neues Event oder den nchsten Rescan aus
+		rememberFileStat(file);
+		try {
+			onModFile(file);
+		} catch (RuntimeException e) {
+			log.log(Level.SEVERE, "Error handling modification of file " + file, e);
+		} finally {
+			synchronized (pendingFiles) {
+				if (pendingFiles.get(file) == ParseState.RUNNING_DIRTY) {
+					scheduleParse(file);
+				} else {
+					pendingFiles.remove(file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Prft, ob sich das neueste Log-File gendert hat und plant das nchste Pollen.<p>
+	 *
+	 * Es werden nur die Attribute des Files gelesen, das File selbst wird nicht verndert.
+	 */
+	private void pollNewestFile() {
+		final Path file = newestFile;
+		if (file != null) {
+			try {
+				final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+				if (!file.equals(polledFile) || attributes.size() != polledSize
+						|| !Objects.equals(attributes.fileKey(), polledKey)) {
+					log.finest("Polled change of file " + file);
+					polledFile = file;
+					polledSize = attributes.size();
+					polledKey = attributes.fileKey();
+					pollMillis = MIN_POLL_MILLIS;
+					dispatch(file.getFileName().toString());
+				} else {
+					pollMillis = Math.min(pollMillis * 2, maxPollMillis);
+				}
+			} catch (IOException e) {
+				log.finer("Cannot poll file " + file + ". " + e.toString());
+				pollMillis = maxPollMillis;
+			}
+		} else {
+			pollMillis = maxPollMillis;
+		}
+
+		if (!parseExecutor.isShutdown()) {
+			parseExecutor.schedule(this::pollNewestFile, pollMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Sucht das neueste Log-File im Verzeichnis. Der Name der Log-Files enthlt einen Zeitstempel,
+	 * das neueste File hat also den grten Namen.
+	 *
+	 * @return das neueste Log-File, null wenn es keins gibt
+	 */
+	private static Path findNewestFile(Path dir, String fileBaseName) {
+		Path newest = null;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, fileBaseName + "*")) {
+			for (Path file : stream) {
+				if (newest == null || file.getFileName().toString().compareTo(newest.getFileName().toString()) > 0) {
+					newest = file;
+				}
+			}
+		} catch (IOException e) {
+			log.warning("Cannot list log files. " + e.toString());
+		}
+		return newest;
+	}
+
 	/**
 	 * Startet die berwachung eines angegebenen Verzeichnisses.
 	 *
 	 * @param dir der Pfad des Verzeichnisses, das berwacht werden soll
+	 * @param fileBaseName Basisname der Log-Files
+	 * @param scanIntervall lngstes Intervall in Sekunden, in dem das neueste Log-File gepollt wird
+	 * @param debounceMillis Zeitfenster in ms, in dem Events fr ein File zusammengefasst werden
 	 */
-	protected void startWatchDirectory(String dir, String fileBaseName, int scanIntervall) {
+	protected void startWatchDirectory(String dir, String fileBaseName, int scanIntervall, int debounceMillis) {
 		Path path = Paths.get(dir);
 		// Sanity check - Check if path is a folder
 		try {
@@ -64,26 +380,20 @@ public abstract class DirectoryWatcher {
 
 		log.info("Watching path: " + path);
 
-		// this is a hack!
+		final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+		// beim Stoppen nur den laufenden Parse beenden, nicht noch die geplanten
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		parseExecutor = executor;
+
 		// WatchService does not receive any modify events when the game is running
-		// and has focus. Must touch the actual log-file frequently to get modify event
-		Runnable runnable = () -> {
-			try {
-				while(true) {
-					if (newestFile != null) {
-						log.finest("touching file " + newestFile);
-						long timestamp = System.currentTimeMillis();
-						FileTime ft = FileTime.fromMillis(timestamp);
-			            Files.setLastModifiedTime(newestFile, ft);
-					}
-		            TimeUnit.SECONDS.sleep(scanIntervall);
-				}
-			} catch (Exception e) {
-				log.warning(e.toString());
-			}
-		};
-		touchThread = new Thread(runnable);
-		touchThread.start();
+		// and has focus. Poll the size of the actual log-file to detect changes
+		setIntervals(scanIntervall, debounceMillis);
+		newestFile = findNewestFile(path, fileBaseName);
+		log.finer("Newest file is " + newestFile);
+		parseExecutor.execute(this::pollNewestFile);
+		watchedPath = path;
+		directorySnapshot.clear();
+		directorySnapshot.putAll(snapshotDirectory(path));
 
 		// We obtain the file system of the Path
 		FileSystem fs = path.getFileSystem();
@@ -106,10 +416,12 @@ public abstract class DirectoryWatcher {
 					// Get the type of the event
 					kind = watchEvent.kind();
 					if (OVERFLOW == kind) {
-						continue; // loop
+						// events have been lost, look for changed files
+						log.warning("Watch events lost (overflow #" + overflows.incrementAndGet() + "). Rescanning directory.");
+						rescanDirectory(path);
 					} else if (ENTRY_CREATE == kind) {
 						// when a file is created, look if it matches the pattern for a log-file
-						// and store the file for the touchThread to touch it frequently
+						// and store the file to poll it frequently
 						final String file = watchEvent.context().toString();
 						log.fine(watchEvent.kind() + " event received for file " + file);
 						if (file.startsWith(fileBaseName)) {
@@ -118,10 +430,10 @@ public abstract class DirectoryWatcher {
 							newestFile = Paths.get(sb.toString());
 							log.finer("Storing file as newest: " + newestFile);
 						}
-						onModFile(file);
+						dispatch(file);
 					} else if (ENTRY_MODIFY == kind) {
 						log.finer(watchEvent.kind() + " event received for file " + watchEvent.context());
-						onModFile(watchEvent.context().toString());
+						dispatch(watchEvent.context().toString());
 					}
 				}
 
@@ -0,0 +1,351 @@
+package net.marcomichel.ed.watcher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Persistenter Ausgang fr Events, die noch an den Server geschickt werden mssen.<p>
+ *
+ * Die Events werden an ein Segment-File angehngt, eine Zeile pro Event im Format
+ * <code>&lt;Zeitstempel in ms&gt; &lt;JSON&gt;</code>. Ein zweites File enthlt den Lese-Cursor, also den Offset hinter
+ * dem letzten Event, das der Server angenommen hat. Events, die beim Beenden des Watchers oder bei einem Absturz
+ * noch nicht verschickt waren, werden beim nchsten Start in der ursprnglichen Reihenfolge gesendet.<p>
+ *
+ * Angehngt wird ohne force, damit das Einstellen eines Events schnell bleibt. Der Leser schreibt das Segment
+ * vor dem Versand auf die Platte, der Cursor wird nach jedem Commit geschrieben. Sind alle Events verschickt und
+ * ist das Segment grer als {@link #COMPACT_BYTES}, wird es geleert.<p>
+ *
+ * Es darf nur einen Leser geben, Events einstellen drfen beliebig viele Threads.
+ *
+ * @author Marco Michel
+ */
+public class EventOutbox implements Closeable {
+
+	private static final Logger log = Logger.getLogger(EventOutbox.class.getName());
+
+	private static final Charset CHARSET = StandardCharsets.UTF_8;
+	// ab dieser Gre wird das Segment geleert, sobald alle Events verschickt sind
+	static final long COMPACT_BYTES = 1024 * 1024;
+
+	private final FileChannel segment;
+	private final FileChannel cursorFile;
+	private final int capacity;
+	private final ByteBuffer cursorBuffer = ByteBuffer.allocate(8);
+	private ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+	private ByteBuffer lineBuffer = ByteBuffer.allocate(512);
+
+	// Ende des Segments, hier wird das nchste Event angehngt
+	private long writeOffset;
+	// Offset hinter dem letzten verschickten Event
+	private long readOffset;
+	// Anzahl der noch nicht verschickten Events
+	private int pending;
+
+	/**
+	 * ffnet den Ausgang und ermittelt die Events, die noch nicht verschickt wurden.<p>
+	 *
+	 * Eine unvollstndige letzte Zeile, z.B. nach einem Absturz beim Schreiben, wird abgeschnitten.
+	 *
+	 * @param segmentFile File mit den Events
+	 * @param cursorFile File mit dem Lese-Cursor
+	 * @param capacity maximale Anzahl noch nicht verschickter Events
+	 * @throws IOException wenn die Files nicht geffnet werden knnen
+	 */
+	public EventOutbox(String segmentFile, String cursorFile, int capacity) throws IOException {
+		this.capacity = capacity;
+		final Path segmentPath = Paths.get(segmentFile);
+		if (segmentPath.getParent() != null) {
+			segmentPath.getParent().toFile().mkdirs();
+		}
+		this.segment = FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.cursorFile = FileChannel.open(Paths.get(cursorFile), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		recover();
+	}
+
+	/**
+	 * Liest den Cursor und zhlt die Events dahinter.
+	 */
+	private void recover() throws IOException {
+		cursorBuffer.clear();
+		long cursor = 0;
+		if (cursorFile.read(cursorBuffer, 0) == 8) {
+			cursorBuffer.flip();
+			cursor = cursorBuffer.getLong();
+		}
+
+		final long size = segment.size();
+		if (cursor < 0 || cursor > size || (cursor > 0 && !isLineEnd(cursor - 1))) {
+			// Segment wurde geleert oder der Cursor ist kaputt: lieber doppelt senden als Events verlieren
+			log.warning("Invalid outbox cursor " + cursor + " for segment size " + size + ". Starting at 0.");
+			cursor = 0;
+		}
+
+		// Vollstndige Zeilen hinter dem Cursor zhlen
+		long lineEnd = cursor;
+		long pos = cursor;
+		final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		while (pos < size) {
+			buffer.clear();
+			final int read = segment.read(buffer, pos);
+			if (read <= 0) {
+				break;
+			}
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n') {
+					pending++;
+					lineEnd = pos + i + 1;
+				}
+			}
+			pos += read;
+		}
+		if (lineEnd < size) {
+			log.warning("Dropping incomplete event at end of outbox (" + (size - lineEnd) + " bytes).");
+			segment.truncate(lineEnd);
+		}
+
+		readOffset = cursor;
+		writeOffset = lineEnd;
+		writeCursor(cursor);
+		log.info("Outbox opened with " + pending + " pending events.");
+	}
+
+	private boolean isLineEnd(long position) throws IOException {
+		final ByteBuffer b = ByteBuffer.allocate(1);
+		return segment.read(b, position) == 1 && b.get(0) == '\n';
+	}
+
+	/**
+	 * Stellt ein Event ein, wenn noch Platz ist.
+	 *
+	 * @param json das Event als UTF-8 kodiertes JSON, darf keinen Zeilenumbruch enthalten
+	 * @param length Lnge des Events im Array
+	 * @return false, wenn der Ausgang voll ist
+	 * @throws IOException wenn das Event nicht geschrieben werden konnte
+	 */
+	public synchronized boolean offer(byte[] json, int length) throws IOException {
+		if (pending >= capacity) {
+			return false;
+		}
+		append(json, length);
+		return true;
+	}
+
+	/**
+	 * Stellt ein Event ein und wartet, bis Platz frei ist.
+	 *
+	 * @param json das Event als UTF-8 kodiertes JSON, darf keinen Zeilenumbruch enthalten
+	 * @param length Lnge des Events im Array
+	 * @throws IOException wenn das Event nicht geschrieben werden konnte
+	 * @throws InterruptedException wenn der Thread beim Warten unterbrochen wurde
+	 */
+	public synchronized void put(byte[] json, int length) throws IOException, InterruptedException {
+		while (pending >= capacity) {
+			wait();
+		}
+		append(json, length);
+	}
+
+	private void append(byte[] json, int length) throws IOException {
+		// Zeitstempel + Leerzeichen + JSON + Zeilenumbruch
+		if (lineBuffer.capacity() < length + 21) {
+			lineBuffer = ByteBuffer.allocate(Math.max(lineBuffer.capacity() * 2, length + 21));
+		}
+		final byte[] line = lineBuffer.array();
+		long created = System.currentTimeMillis();
+		int digits = 1;
+		for (long rest = created / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		for (int i = digits - 1; i >= 0; i--) {
+			line[i] = (byte) ('0' + created % 10);
+			created /= 10;
+		}
+		line[digits] = ' ';
+		System.arraycopy(json, 0, line, digits + 1, length);
+		line[digits + 1 + length] = '\n';
+		lineBuffer.clear();
+		lineBuffer.limit(digits + 2 + length);
+
+		long pos = writeOffset;
+		while (lineBuffer.hasRemaining()) {
+			pos += segment.write(lineBuffer, pos);
+		}
+		writeOffset = pos;
+		pending++;
+		notifyAll();
+	}
+
+	/**
+	 * Liest die nchsten Events, ohne sie als verschickt zu markieren.<p>
+	 *
+	 * Wartet bis zu firstWaitMillis auf das erste Event und danach bis zu fillWaitMillis, bis max Events
+	 * vorhanden sind. Vor dem Lesen wird das Segment auf die Platte geschrieben.
+	 *
+	 * @param max maximale Anzahl Events
+	 * @param firstWaitMillis wie lange auf das erste Event gewartet wird
+	 * @param fillWaitMillis wie lange danach auf weitere Events gewartet wird
+	 * @return die Events in der Reihenfolge, in der sie eingestellt wurden, leer wenn keins vorhanden ist
+	 * @throws IOException wenn das Segment nicht gelesen werden konnte
+	 * @throws InterruptedException wenn der Thread beim Warten unterbrochen wurde
+	 */
+	public List<Entry> read(int max, long firstWaitMillis, long fillWaitMillis) throws IOException, InterruptedException {
+		final long start;
+		final long end;
+		final int available;
+		synchronized (this) {
+			if (!awaitPending(1, firstWaitMillis)) {
+				return new ArrayList<Entry>(0);
+			}
+			awaitPending(max, fillWaitMillis);
+			start = readOffset;
+			end = writeOffset;
+			available = pending;
+		}
+		segment.force(false);
+
+		// Hinter end wird nur angehngt, der Bereich kann ohne Lock gelesen werden
+		final List<Entry> entries = new ArrayList<Entry>(Math.min(max, available));
+		long pos = start;
+		while (pos < end && entries.size() < max) {
+			final int length = (int) Math.min(end - pos, readBuffer.capacity());
+			readBuffer.clear();
+			readBuffer.limit(length);
+			while (readBuffer.hasRemaining() && segment.read(readBuffer, pos + readBuffer.position()) > 0) {
+				// weiterlesen
+			}
+			int lineStart = 0;
+			for (int i = 0; i < readBuffer.position() && entries.size() < max; i++) {
+				if (readBuffer.get(i) == '\n') {
+					entries.add(parseLine(readBuffer, lineStart, i, pos + i + 1));
+					lineStart = i + 1;
+				}
+			}
+			if (lineStart == 0) {
+				// Zeile passt nicht in den Puffer
+				readBuffer = ByteBuffer.allocate(readBuffer.capacity() * 2);
+				continue;
+			}
+			pos += lineStart;
+		}
+		return entries;
+	}
+
+	private boolean awaitPending(int count, long millis) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		while (pending < count) {
+			final long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (wait <= 0) {
+				return false;
+			}
+			wait(wait);
+		}
+		return true;
+	}
+
+	private static Entry parseLine(ByteBuffer buffer, int start, int end, long next) {
+		int space = start;
+		while (space < end && buffer.get(space) != ' ') {
+			space++;
+		}
+		long created = 0;
+		for (int i = start; i < space; i++) {
+			created = created * 10 + (buffer.get(i) - '0');
+		}
+		final String json = new String(buffer.array(), space + 1, end - space - 1, CHARSET);
+		return new Entry(json, created, next);
+	}
+
+	/**
+	 * Markiert alle Events bis einschlielich entry als verschickt.
+	 *
+	 * @param entry letztes verschicktes Event, muss aus {@link #read(int, long, long)} stammen
+	 * @param count Anzahl der damit verschickten Events
+	 * @throws IOException wenn der Cursor nicht geschrieben werden konnte
+	 */
+	public synchronized void commit(Entry entry, int count) throws IOException {
+		readOffset = entry.next;
+		pending -= count;
+		if (pending == 0 && readOffset == writeOffset && writeOffset > COMPACT_BYTES) {
+			// Erst das Segment leeren, dann den Cursor: ein Absturz dazwischen fhrt zu Cursor > Gre und damit zu 0
+			segment.truncate(0);
+			segment.force(true);
+			readOffset = 0;
+			writeOffset = 0;
+			log.fine("Outbox compacted");
+		}
+		writeCursor(readOffset);
+		notifyAll();
+	}
+
+	private void writeCursor(long cursor) throws IOException {
+		cursorBuffer.clear();
+		cursorBuffer.putLong(cursor);
+		cursorBuffer.flip();
+		while (cursorBuffer.hasRemaining()) {
+			cursorFile.write(cursorBuffer, cursorBuffer.position());
+		}
+		cursorFile.force(false);
+	}
+
+	/**
+	 * @return Anzahl der noch nicht verschickten Events
+	 */
+	public synchronized int size() {
+		return pending;
+	}
+
+	/**
+	 * Schreibt alles auf die Platte und schliet die Files.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			if (segment.isOpen()) {
+				segment.force(true);
+			}
+		} finally {
+			segment.close();
+			cursorFile.close();
+		}
+	}
+
+	/**
+	 * Ein Event aus dem Ausgang.
+	 */
+	public static class Entry {
+		private final String json;
+		private final long created;
+		private final long next;
+
+		Entry(String json, long created, long next) {
+			this.json = json;
+			this.created = created;
+			this.next = next;
+		}
+
+		/**
+		 * @return das Event als JSON
+		 */
+		public String getJson() {
+			return json;
+		}
+
+		/**
+		 * @return Zeitpunkt in ms, zu dem das Event eingestellt wurde
+		 */
+		public long getCreated() {
+			return created;
+		}
+	}
+}
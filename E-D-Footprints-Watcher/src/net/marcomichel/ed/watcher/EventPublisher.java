@@ -0,0 +1,429 @@
+package net.marcomichel.ed.watcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.marcomichel.ed.parser.EventId;
+import net.marcomichel.ed.watcher.util.Backoff;
+import net.marcomichel.ed.watcher.util.CircuitBreaker;
+import net.marcomichel.ed.watcher.util.DedupWindow;
+import net.marcomichel.ed.watcher.util.HttpUtil;
+
+/**
+ * Entkoppelt das Erkennen von Sprngen vom Versand der Events an den Server.<p>
+ *
+ * Events werden in einen persistenten {@link EventOutbox} gestellt und von einem eigenen Thread in der
+ * Reihenfolge, in der sie eingestellt wurden, an den Server geschickt. Damit kehrt {@link #offerJump(String, String, long)}
+ * sofort zurck, auch wenn der Server langsam oder nicht erreichbar ist. Ist der Ausgang voll, wird das neue
+ * Event verworfen und gezhlt.<p>
+ *
+ * Kann ein Event nicht gesendet werden, bleibt es im Ausgang und der Versand wird mit exponentiellem
+ * {@link Backoff} wiederholt. Ist der {@link CircuitBreaker} des Servers offen, wird mindestens bis zur
+ * nchsten Probe gewartet. Ist der Server wieder da, werden alle aufgelaufenen Events ohne Pause verschickt. Events, die beim
+ * Beenden noch nicht verschickt waren, gehen beim nchsten Start raus.<p>
+ *
+ * Liegen mehrere Events im Ausgang, werden bis zu batchSize Events mit {@link HttpUtil#publishBatch(List)} in
+ * einem Request verschickt. Dazu wird nach dem ersten Event bis zu batchMillis auf weitere gewartet. Nimmt der
+ * Server keine Batches an, gehen die Events einzeln raus.<p>
+ *
+ * Jedes Event hat eine deterministische ID. Die IDs der zuletzt eingestellten Events liegen in einem
+ * {@link DedupWindow}. Wird ein Event mit einer bekannten ID erneut eingestellt, z.B. weil alte Sprnge nach dem
+ * Verlust des State noch einmal gemeldet werden, wird es bersprungen und gezhlt. ber die ID im JSON kann auch
+ * der Server Events erkennen, die er wegen einer Wiederholung doppelt bekommt.<p>
+ *
+ * Fr die berwachung stehen die Anzahl der wartenden Events, die Zeit zwischen Einstellen und Versand sowie die
+ * Anzahl der gesendeten, fehlgeschlagenen und verworfenen Events zur Verfgung.
+ *
+ * @author Marco Michel
+ */
+public class EventPublisher {
+
+	private static final Logger log = Logger.getLogger(EventPublisher.class.getName());
+
+	// wie lange der Worker auf ein Event wartet, bevor er prft, ob er beendet werden soll
+	private static final long POLL_MILLIS = 200;
+	// Pause nach fehlgeschlagenem Versand
+	private static final Backoff RETRY_BACKOFF = new Backoff(1000, 60000);
+
+	private final EventOutbox outbox;
+	// serialisiert die Events, nur mit Lock auf den Writer benutzen
+	private final EventWriter writer;
+	// IDs der zuletzt eingestellten Events, nur mit Lock auf den Writer benutzen
+	private final DedupWindow dedup;
+	private final int batchSize;
+	private final long batchMillis;
+	private final IModelObserver modelObserver;
+	private Thread worker = null;
+	private volatile boolean running = false;
+	// fehlgeschlagene Versuche in Folge, nur im Worker benutzt
+	private int consecutiveFailures = 0;
+
+	// Metriken
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong duplicates = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong latencyCount = new AtomicLong();
+	private final AtomicLong totalLatencyMillis = new AtomicLong();
+	private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+	/**
+	 * @param outbox Ausgang, aus dem die Events verschickt werden
+	 * @param writer serialisiert die Events
+	 * @param dedup IDs der zuletzt eingestellten Events
+	 * @param batchSize maximale Anzahl Events pro Request, 1 schaltet Batches aus
+	 * @param batchMillis wie lange nach dem ersten Event maximal auf weitere Events fr den Batch gewartet wird
+	 * @param observer Observer ber den die GUI informiert wird
+	 */
+	public EventPublisher(EventOutbox outbox, EventWriter writer, DedupWindow dedup, int batchSize, long batchMillis, IModelObserver observer) {
+		this.outbox = outbox;
+		this.writer = writer;
+		this.dedup = dedup;
+		this.batchSize = Math.max(1, batchSize);
+		this.batchMillis = batchMillis;
+		this.modelObserver = observer;
+	}
+
+	/**
+	 * Startet den Thread, der die Events verschickt.
+	 */
+	public synchronized void start() {
+		if (worker != null) {
+			return;
+		}
+		running = true;
+		worker = new Thread(this::run, "event-publisher");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Stellt ein "Jumped To" Event in den Ausgang, ohne auf Platz zu warten.
+	 *
+	 * @param from Das System aus dem gesprungen wurde
+	 * @param to System in das gesprungen wurde
+	 * @param eventId ID des Sprungs
+	 * @return false, wenn der Ausgang voll ist oder nicht geschrieben werden konnte und das Event verworfen wurde
+	 */
+	public boolean offerJump(String from, String to, long eventId) {
+		synchronized (writer) {
+			if (isDuplicate(eventId)) {
+				return true;
+			}
+			return offer(writer.writeJump(from, to, eventId), eventId);
+		}
+	}
+
+	/**
+	 * Stellt ein "status.change" Event in den Ausgang, ohne auf Platz zu warten.
+	 *
+	 * @param status der neue Status, z.B. online
+	 * @param eventId ID des Events
+	 * @return false, wenn der Ausgang voll ist oder nicht geschrieben werden konnte und das Event verworfen wurde
+	 */
+	public boolean offerStatusChange(String status, long eventId) {
+		synchronized (writer) {
+			if (isDuplicate(eventId)) {
+				return true;
+			}
+			return offer(writer.writeStatusChange(status, eventId), eventId);
+		}
+	}
+
+	/**
+	 * Prft, ob ein Event mit der ID schon eingestellt wurde.
+	 */
+	private boolean isDuplicate(long eventId) {
+		if (dedup.contains(eventId)) {
+			// beim Nachladen sind das viele, die Summe steht in den Stats und in der Meldung zum Backfill
+			duplicates.incrementAndGet();
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Skipping duplicate event " + EventId.toString(eventId));
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Stellt das Event aus dem Puffer des Writers in den Ausgang.
+	 */
+	private boolean offer(int length, long eventId) {
+		if (log.isLoggable(Level.INFO)) {
+			log.info(writer.toString());
+		}
+		try {
+			if (outbox.offer(writer.getBuffer(), length)) {
+				dedup.add(eventId);
+				return true;
+			}
+			log.warning("Outbox full. Dropped event (" + dropped.incrementAndGet() + " dropped so far).");
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Cannot write event to outbox. Dropped event (" + dropped.incrementAndGet() + " dropped so far).", e);
+		}
+		return false;
+	}
+
+	/**
+	 * Stellt ein "Jumped To" Event in den Ausgang und wartet, bis Platz frei ist.<p>
+	 *
+	 * Fr groe Mengen von Events, z.B. beim Nachladen alter Log-Files, bei denen kein Event verloren gehen soll.
+	 *
+	 * @param from Das System aus dem gesprungen wurde
+	 * @param to System in das gesprungen wurde
+	 * @param eventId ID des Sprungs
+	 * @throws IOException wenn das Event nicht geschrieben werden konnte
+	 * @throws InterruptedException wenn der Thread beim Warten unterbrochen wurde
+	 */
+	public void putJump(String from, String to, long eventId) throws IOException, InterruptedException {
+		synchronized (writer) {
+			if (isDuplicate(eventId)) {
+				return;
+			}
+			final int length = writer.writeJump(from, to, eventId);
+			if (log.isLoggable(Level.INFO)) {
+				log.info(writer.toString());
+			}
+			outbox.put(writer.getBuffer(), length);
+			dedup.add(eventId);
+		}
+	}
+
+	/**
+	 * Setzt Commander und ID fr alle folgenden Events.
+	 *
+	 * @param cmdr Name des Commanders
+	 * @param id ID des Commanders
+	 */
+	public void setIdentity(String cmdr, String id) {
+		synchronized (writer) {
+			writer.setIdentity(cmdr, id);
+		}
+	}
+
+	/**
+	 * Beendet den Worker, nachdem alle Events aus dem Ausgang verschickt wurden.<p>
+	 *
+	 * Ist der Server nicht erreichbar, wird nicht gewartet. Die Events bleiben im Ausgang.
+	 *
+	 * @param timeoutMillis wie lange maximal auf das Verschicken gewartet wird
+	 */
+	public void stop(long timeoutMillis) {
+		final Thread thread;
+		synchronized (this) {
+			thread = worker;
+			worker = null;
+		}
+		if (thread == null) {
+			return;
+		}
+		running = false;
+		try {
+			thread.join(timeoutMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (thread.isAlive()) {
+			thread.interrupt();
+		}
+		if (outbox.size() > 0) {
+			log.warning(outbox.size() + " events not sent. They will be sent on next start.");
+		}
+		log.info("Publisher stats: sent=" + sent.get() + ", failed=" + failed.get() + ", dropped=" + dropped.get() + ", duplicates=" + duplicates.get() + ", batches=" + batches.get()
+				+ ", avg latency=" + getAverageLatencyMillis() + " ms, max latency=" + getMaxLatencyMillis() + " ms");
+	}
+
+	/**
+	 * Stoppt den Worker und schliet den Ausgang und das Fenster mit den IDs.
+	 *
+	 * @param timeoutMillis wie lange maximal auf das Verschicken gewartet wird
+	 */
+	public void close(long timeoutMillis) {
+		stop(timeoutMillis);
+		try {
+			outbox.close();
+		} catch (IOException e) {
+			log.warning("Cannot close outbox. " + e.toString());
+		}
+		try {
+			dedup.close();
+		} catch (IOException e) {
+			log.warning("Cannot close dedup window. " + e.toString());
+		}
+	}
+
+	/**
+	 * Verschickt Events, bis der Publisher gestoppt wird und der Ausgang leer ist.
+	 */
+	private void run() {
+		log.fine("Publisher started");
+		while (running || outbox.size() > 0) {
+			final List<EventOutbox.Entry> batch;
+			try {
+				batch = outbox.read(batchSize, POLL_MILLIS, batchMillis);
+			} catch (InterruptedException e) {
+				break;
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Cannot read outbox.", e);
+				if (!running || !pause()) {
+					break;
+				}
+				continue;
+			}
+			if (batch.isEmpty()) {
+				continue;
+			}
+
+			final int done = send(batch);
+			if (done > 0) {
+				try {
+					outbox.commit(batch.get(done - 1), done);
+				} catch (IOException e) {
+					log.log(Level.SEVERE, "Cannot write outbox cursor.", e);
+				}
+			}
+			if (done == batch.size()) {
+				consecutiveFailures = 0;
+			} else {
+				failed.incrementAndGet();
+				modelObserver.addMessage("Server problems. Events are kept and sent later.");
+				if (!running || !pause()) {
+					break;
+				}
+			}
+		}
+		log.fine("Publisher stopped");
+	}
+
+	/**
+	 * Schickt die Events als Batch oder, wenn das nicht geht, einzeln bis zum ersten Fehler.
+	 *
+	 * @return Anzahl der Events vom Anfang des Batches, die verschickt wurden
+	 */
+	private int send(List<EventOutbox.Entry> batch) {
+		final List<String> events = new ArrayList<String>(batch.size());
+		for (EventOutbox.Entry entry : batch) {
+			events.add(entry.getJson());
+		}
+
+		if (events.size() > 1) {
+			try {
+				if (HttpUtil.publishBatch(events)) {
+					batches.incrementAndGet();
+					sentEvents(batch);
+					return batch.size();
+				}
+			} catch (IOException e) {
+				log.warning("Could not send batch of " + batch.size() + " events. Sending single events. " + e.toString());
+			}
+		}
+
+		for (int i = 0; i < events.size(); i++) {
+			try {
+				HttpUtil.publishEvent(events.get(i));
+			} catch (IOException e) {
+				return i;
+			} catch (RuntimeException e) {
+				log.log(Level.SEVERE, "Unexpected error while sending event.", e);
+				return i;
+			}
+			sentEvents(batch.subList(i, i + 1));
+		}
+		return events.size();
+	}
+
+	/**
+	 * Zhlt verschickte Events und ihre Latenz.
+	 */
+	private void sentEvents(List<EventOutbox.Entry> entries) {
+		sent.addAndGet(entries.size());
+		final long now = System.currentTimeMillis();
+		for (EventOutbox.Entry entry : entries) {
+			final long latency = now - entry.getCreated();
+			latencyCount.incrementAndGet();
+			totalLatencyMillis.addAndGet(latency);
+			long max = maxLatencyMillis.get();
+			while (latency > max && !maxLatencyMillis.compareAndSet(max, latency)) {
+				max = maxLatencyMillis.get();
+			}
+		}
+	}
+
+	/**
+	 * Wartet vor dem nchsten Versuch, mindestens so lange wie der Breaker noch offen ist.
+	 *
+	 * @return false, wenn der Thread dabei unterbrochen wurde
+	 */
+	private boolean pause() {
+		final long delay = Math.max(RETRY_BACKOFF.delay(consecutiveFailures++), HttpUtil.getCircuitBreaker().getRemainingOpenMillis());
+		log.fine("Next try in " + delay + " ms");
+		try {
+			Thread.sleep(delay);
+			return true;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return Anzahl der Events, die auf den Versand warten
+	 */
+	public int getQueueDepth() {
+		return outbox.size();
+	}
+
+	/**
+	 * @return Anzahl der erfolgreich gesendeten Events
+	 */
+	public long getSentCount() {
+		return sent.get();
+	}
+
+	/**
+	 * @return Anzahl der fehlgeschlagenen Versuche, die Events werden spter noch einmal gesendet
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * @return Anzahl der Events, die wegen vollem Ausgang verworfen wurden
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return Anzahl der Events, die wegen einer bekannten ID bersprungen wurden
+	 */
+	public long getDuplicateCount() {
+		return duplicates.get();
+	}
+
+	/**
+	 * @return Anzahl der Batches, die der Server angenommen hat
+	 */
+	public long getBatchCount() {
+		return batches.get();
+	}
+
+	/**
+	 * @return durchschnittliche Zeit in ms zwischen Einstellen und Versand
+	 */
+	public long getAverageLatencyMillis() {
+		final long count = latencyCount.get();
+		return count == 0 ? 0 : totalLatencyMillis.get() / count;
+	}
+
+	/**
+	 * @return maximale Zeit in ms zwischen Einstellen und Versand
+	 */
+	public long getMaxLatencyMillis() {
+		return maxLatencyMillis.get();
+	}
+}
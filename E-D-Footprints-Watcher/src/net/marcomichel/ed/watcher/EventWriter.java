@@ -0,0 +1,226 @@
+package net.marcomichel.ed.watcher;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import net.marcomichel.ed.parser.EventId;
+
+/**
+ * Schreibt die Events "Jumped To" und "status.change" als JSON direkt in einen wiederverwendbaren Byte-Puffer.<p>
+ *
+ * Die Ausgabe ist Byte fr Byte die gleiche wie bei einem json-simple JSONObject mit den gleichen Feldern:
+ * gleiche Reihenfolge der Felder (die Iterationsreihenfolge der HashMap von JSONObject, in der eventId vorne
+ * steht) und gleiches Escaping wie JSONValue.escape, kodiert in UTF-8. Die Teile, die sich nicht ndern, also
+ * Feldnamen, Commander und seine ID, werden nur einmal kodiert. Die eventId ist die ID des Events aus
+ * {@link EventId} als 16 Hex-Ziffern.<p>
+ *
+ * Der Puffer ist bis zum nchsten Aufruf gltig. Die Klasse ist nicht thread-safe.
+ *
+ * @author Marco Michel
+ */
+public class EventWriter {
+
+	private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] HEX_LOWER = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	// {"eventId":<eventId>,"cmdr":<cmdr>,"from":<from>,"to":<to>,"id":<id>,"event":"Jumped To"}
+	private static final byte[] EVENT_ID = ascii("{\"eventId\":\"");
+	private byte[] jumpPrefix;
+	private static final byte[] JUMP_TO = ascii(",\"to\":");
+	private byte[] jumpSuffix;
+	// {"eventId":<eventId>,"cmdr":<cmdr>,"id":<id>,"event":"status.change","status":<status>}
+	private byte[] statusPrefix;
+
+	private byte[] buffer = new byte[256];
+	private int length = 0;
+
+	/**
+	 * @param cmdr Name des Commanders
+	 * @param id ID des Commanders, null wenn er noch nicht registriert ist
+	 */
+	public EventWriter(String cmdr, String id) {
+		setIdentity(cmdr, id);
+	}
+
+	/**
+	 * Setzt Commander und ID neu, z.B. nach der Registrierung.
+	 *
+	 * @param cmdr Name des Commanders
+	 * @param id ID des Commanders, null wenn er noch nicht registriert ist
+	 */
+	public void setIdentity(String cmdr, String id) {
+		// beginnt mit dem Anfhrungszeichen, das die eventId abschliet
+		final String encodedCmdr = "\",\"cmdr\":" + value(cmdr);
+		final String encodedId = ",\"id\":" + value(id);
+		jumpPrefix = utf8(encodedCmdr + ",\"from\":");
+		jumpSuffix = utf8(encodedId + ",\"event\":\"Jumped To\"}");
+		statusPrefix = utf8(encodedCmdr + encodedId + ",\"event\":\"status.change\",\"status\":");
+	}
+
+	/**
+	 * Schreibt ein "Jumped To" Event.
+	 *
+	 * @param from Das System aus dem gesprungen wurde
+	 * @param to System in das gesprungen wurde
+	 * @param eventId ID des Events
+	 * @return Lnge des Events im Puffer
+	 */
+	public int writeJump(String from, String to, long eventId) {
+		writeEventId(eventId);
+		append(jumpPrefix);
+		appendValue(from);
+		append(JUMP_TO);
+		appendValue(to);
+		append(jumpSuffix);
+		return length;
+	}
+
+	/**
+	 * Schreibt ein "status.change" Event.
+	 *
+	 * @param status der neue Status, z.B. online
+	 * @param eventId ID des Events
+	 * @return Lnge des Events im Puffer
+	 */
+	public int writeStatusChange(String status, long eventId) {
+		writeEventId(eventId);
+		append(statusPrefix);
+		appendValue(status);
+		ensure(1);
+		buffer[length++] = '}';
+		return length;
+	}
+
+	/**
+	 * @return Puffer mit dem zuletzt geschriebenen Event ab Index 0
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return Lnge des zuletzt geschriebenen Events
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return das zuletzt geschriebene Event als String
+	 */
+	@Override
+	public String toString() {
+		return new String(buffer, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Beginnt ein neues Event mit der eventId als 16 Hex-Ziffern, wie {@link EventId#toString(long)}.
+	 */
+	private void writeEventId(long eventId) {
+		length = 0;
+		append(EVENT_ID);
+		ensure(16);
+		for (int shift = 60; shift >= 0; shift -= 4) {
+			buffer[length++] = HEX_LOWER[(int) (eventId >>> shift) & 0xF];
+		}
+	}
+
+	private void append(byte[] bytes) {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+	}
+
+	private void ensure(int more) {
+		if (length + more > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + more));
+		}
+	}
+
+	/**
+	 * Schreibt einen String-Wert incl. Anfhrungszeichen, oder null.
+	 */
+	private void appendValue(String s) {
+		if (s == null) {
+			ensure(4);
+			buffer[length++] = 'n';
+			buffer[length++] = 'u';
+			buffer[length++] = 'l';
+			buffer[length++] = 'l';
+			return;
+		}
+		// hchstens 6 Bytes pro char (\\uXXXX), dazu die Anfhrungszeichen
+		ensure(s.length() * 6 + 2);
+		length = escape(s, buffer, length);
+	}
+
+	/**
+	 * Kodiert einen String-Wert incl. Anfhrungszeichen, im Puffer muss Platz fr 6 Bytes pro char plus 2 sein.
+	 *
+	 * @return Index hinter dem letzten geschriebenen Byte
+	 */
+	private static int escape(String s, byte[] b, int pos) {
+		b[pos++] = '"';
+		for (int i = 0; i < s.length(); i++) {
+			final char ch = s.charAt(i);
+			switch (ch) {
+			case '"':  b[pos++] = '\\'; b[pos++] = '"';  break;
+			case '\\': b[pos++] = '\\'; b[pos++] = '\\'; break;
+			case '\b': b[pos++] = '\\'; b[pos++] = 'b';  break;
+			case '\f': b[pos++] = '\\'; b[pos++] = 'f';  break;
+			case '\n': b[pos++] = '\\'; b[pos++] = 'n';  break;
+			case '\r': b[pos++] = '\\'; b[pos++] = 'r';  break;
+			case '\t': b[pos++] = '\\'; b[pos++] = 't';  break;
+			case '/':  b[pos++] = '\\'; b[pos++] = '/';  break;
+			default:
+				if (ch <= 0x1F || (ch >= 0x7F && ch <= 0x9F) || (ch >= 0x2000 && ch <= 0x20FF)) {
+					b[pos++] = '\\';
+					b[pos++] = 'u';
+					b[pos++] = HEX[(ch >> 12) & 0xF];
+					b[pos++] = HEX[(ch >> 8) & 0xF];
+					b[pos++] = HEX[(ch >> 4) & 0xF];
+					b[pos++] = HEX[ch & 0xF];
+				} else if (ch < 0x80) {
+					b[pos++] = (byte) ch;
+				} else if (ch < 0x800) {
+					b[pos++] = (byte) (0xC0 | (ch >> 6));
+					b[pos++] = (byte) (0x80 | (ch & 0x3F));
+				} else if (Character.isHighSurrogate(ch) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+					final int cp = Character.toCodePoint(ch, s.charAt(++i));
+					b[pos++] = (byte) (0xF0 | (cp >> 18));
+					b[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					b[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					b[pos++] = (byte) (0x80 | (cp & 0x3F));
+				} else if (Character.isSurrogate(ch)) {
+					// wie der UTF-8 Encoder von String
+					b[pos++] = '?';
+				} else {
+					b[pos++] = (byte) (0xE0 | (ch >> 12));
+					b[pos++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+					b[pos++] = (byte) (0x80 | (ch & 0x3F));
+				}
+			}
+		}
+		b[pos++] = '"';
+		return pos;
+	}
+
+	/**
+	 * @return der Wert als JSON, fr die konstanten Teile
+	 */
+	private static String value(String s) {
+		if (s == null) {
+			return "null";
+		}
+		final byte[] b = new byte[s.length() * 6 + 2];
+		return new String(b, 0, escape(s, b, 0), StandardCharsets.UTF_8);
+	}
+
+	private static byte[] utf8(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
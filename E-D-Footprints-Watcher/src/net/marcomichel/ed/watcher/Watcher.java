@@ -2,6 +2,8 @@ package net.marcomichel.ed.watcher;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Objects;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
@@ -10,10 +12,13 @@ import java.util.logging.Logger;
 
 import org.json.simple.JSONObject;
 
+import net.marcomichel.ed.parser.EventId;
 import net.marcomichel.ed.parser.GameConfigParser;
 import net.marcomichel.ed.parser.GameLogFileParser;
 import net.marcomichel.ed.parser.IJumpToCallBack;
 import net.marcomichel.ed.parser.IParser;
+import net.marcomichel.ed.parser.LogBackfill;
+import net.marcomichel.ed.watcher.util.DedupWindow;
 import net.marcomichel.ed.watcher.util.HttpUtil;
 
 /**
@@ -25,10 +30,19 @@ import net.marcomichel.ed.watcher.util.HttpUtil;
  *
  * @author Marco Michel
  */
-public class Watcher extends DirectoryWatcher implements IJumpToCallBack {
+public class Watcher extends DirectoryWatcher implements IJumpToCallBack, WatcherConfig.ChangeListener {
 
 	private static final Logger log = Logger.getLogger(Watcher.class.getName());
 
+	// wie lange beim Stoppen maximal auf das Verschicken offener Events gewartet wird, in ms
+	private static final long FLUSH_TIMEOUT          = 10000;
+	private static final long BACKFILL_FLUSH_TIMEOUT = 600000;
+	// Files des Ausgangs fr Events, die noch nicht verschickt wurden
+	private static final String OUTBOX_SEGMENT = "config/outbox.log";
+	private static final String OUTBOX_CURSOR  = "config/outbox.cursor";
+	// File mit den IDs der zuletzt eingestellten Events
+	private static final String DEDUP_FILE     = "config/seen-events.bin";
+
     // Parser mit dem das Log-File geparst wird
 	private IParser parser = new GameLogFileParser(this);
 	// Parser mit dem das game config file geparst wird
@@ -39,6 +53,12 @@ public class Watcher extends DirectoryWatcher implements IJumpToCallBack {
 	private ExecutorService executor = Executors.newSingleThreadExecutor();
 	// Flag, ob beim stop ein offline event gesendet werden soll
 	private boolean sendOfflineEvent = false;
+	// Ausgang und Thread, ber die alle Events an den Server gehen
+	private EventPublisher publisher;
+	// Beginn der berwachung, daraus wird die ID der Status-Events berechnet
+	private long session = System.currentTimeMillis();
+	// Verzeichnis, das gerade berwacht wird, in der Form aus der Config
+	private volatile String watchedDirectory;
 
 	/**
 	 * Konstruktor, bekommt den Pfad auf das Config-File des Users und eine Observer-Instanz bergeben.
@@ -50,7 +70,15 @@ public class Watcher extends DirectoryWatcher implements IJumpToCallBack {
 	public Watcher(String propertyFile, IModelObserver observer) throws IOException {
 		this.modelObserver = observer;
 		WatcherConfig.getInstance().initConfig(propertyFile);
-		gameConfig = new GameConfigParser(WatcherConfig.getInstance().getProperty(WatcherConfig.GAME_CONFIG));
+		final WatcherConfig.Snapshot config = WatcherConfig.getInstance().getSnapshot();
+		gameConfig = new GameConfigParser(config.getGameConfig());
+		final EventOutbox outbox = new EventOutbox(OUTBOX_SEGMENT, OUTBOX_CURSOR, config.getPublishQueueSize());
+		publisher = new EventPublisher(outbox,
+				new EventWriter(config.getCmdr(), config.getId()),
+				new DedupWindow(config.getDedupWindow(), DEDUP_FILE),
+				config.getBatchSize(),
+				config.getBatchInterval(),
+				observer);
 		modelObserver.onSystemChange(parser.getCurrentSystem());
 	}
 
@@ -60,30 +88,40 @@ public class Watcher extends DirectoryWatcher implements IJumpToCallBack {
 	@Override
 	protected void onModFile(String file) {
 		// Das genderte File parsen und prfen, ob ein Systemsprung durchgefhrt wurde
-		parser.parseFile(WatcherConfig.getInstance().getProperty(WatcherConfig.DIRECTORY_TO_WATCH) + "/" + file);
+		parser.parseFile(watchedDirectory + "/" + file);
 	}
 
 	/**
-	 * @see net.marcomichel.ed.parser.IJumpToCallBack#jumpedTo(java.lang.String, java.lang.String)
+	 * bernimmt eine genderte Config in die laufende berwachung. Commander, ID und Intervalle gelten sofort,
+	 * ein anderes Verzeichnis oder Game-Config erst beim nchsten Start der berwachung.
+	 *
+	 * @see net.marcomichel.ed.watcher.WatcherConfig.ChangeListener#configChanged(net.marcomichel.ed.watcher.WatcherConfig.Snapshot, net.marcomichel.ed.watcher.WatcherConfig.Snapshot)
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
-	public void jumpedTo(String from, String to) {
-		// JSON_Objekt mit dem Event erzeugen und verschicken
-		JSONObject obj = new JSONObject();
-		obj.put("cmdr", WatcherConfig.getInstance().getProperty(WatcherConfig.CMDR_NAME));
-		obj.put("event", "Jumped To");
-		obj.put("to", to);
-		obj.put("from", from);
-		obj.put("id", WatcherConfig.getInstance().getProperty(WatcherConfig.CMDR_ID));
-		log.info(obj.toJSONString());
+	public void configChanged(WatcherConfig.Snapshot previous, WatcherConfig.Snapshot current) {
+		if (!Objects.equals(previous.getCmdr(), current.getCmdr()) || !Objects.equals(previous.getId(), current.getId())) {
+			log.info("Commander changed to " + current.getCmdr() + " with id " + current.getId());
+			publisher.setIdentity(current.getCmdr(), current.getId());
+		}
+		if (previous.getScanInterval() != current.getScanInterval() || previous.getDebounceInterval() != current.getDebounceInterval()) {
+			setIntervals(current.getScanInterval(), current.getDebounceInterval());
+		}
+		if (!Objects.equals(previous.getDirectoryName(), current.getDirectoryName())
+				|| !Objects.equals(previous.getGameConfig(), current.getGameConfig())) {
+			log.warning("Directory or game config changed. Restart watching to use the new configuration.");
+			modelObserver.addMessage("Directory or game config changed. Restart watching to use the new configuration.");
+		}
+	}
+
+	/**
+	 * @see net.marcomichel.ed.parser.IJumpToCallBack#jumpedTo(java.lang.String, java.lang.String, long)
+	 */
+	@Override
+	public void jumpedTo(String from, String to, long eventId) {
 		modelObserver.onSystemChange(to);
 		modelObserver.addMessage("Send jump event from " + from + " to " + to);
-		try {
-			HttpUtil.publishEvent(obj);
-		} catch (IOException e) {
-			modelObserver.addMessage("Server problems. Could not send event.");
-		}
+		// Nur einstellen, der Versand luft im Thread des Publishers
+		publisher.offerJump(from, to, eventId);
 	}
 
 	/**
@@ -94,13 +132,14 @@ public class Watcher extends DirectoryWatcher implements IJumpToCallBack {
 		log.warning("Commander not registert. Starting registration....");
 		modelObserver.addMessage("Sending registration request....");
 		JSONObject obj = new JSONObject();
-		obj.put("cmdr", WatcherConfig.getInstance().getProperty(WatcherConfig.CMDR_NAME));
-		obj.put("mail", WatcherConfig.getInstance().getProperty(WatcherConfig.CMDR_MAIL));
+		final WatcherConfig.Snapshot config = WatcherConfig.getInstance().getSnapshot();
+		obj.put("cmdr", config.getCmdr());
+		obj.put("mail", config.getMail());
 		log.info(obj.toJSONString());
 		String id = null;
 
 		try {
-			id = HttpUtil.sendPost(obj, WatcherConfig.getInstance().getProperty(WatcherConfig.SERVER_URL) + "/register");
+			id = HttpUtil.sendPost(obj, config.getServerUrl() + "/register");
 			log.info("Got new ID: " + id);
 			WatcherConfig.getInstance().setProperty(WatcherConfig.CMDR_ID, id);
 			log.info("You will receive an e-mail.");
@@ -131,21 +170,10 @@ public class Watcher extends DirectoryWatcher implements IJumpToCallBack {
 		modelObserver.addMessage("Verbose Logging set. Made backup of original GameConfigFile: " + bak);
 	}
 
-	@SuppressWarnings("unchecked")
 	private void publishStatusChange(String status) {
-		// JSON_Objekt mit dem Event erzeugen und verschicken
-		JSONObject obj = new JSONObject();
-		obj.put("cmdr", WatcherConfig.getInstance().getProperty(WatcherConfig.CMDR_NAME));
-		obj.put("event", "status.change");
-		obj.put("status", status);
-		obj.put("id", WatcherConfig.getInstance().getProperty(WatcherConfig.CMDR_ID));
-		log.info(obj.toJSONString());
 		modelObserver.addMessage("Sending Status " + status);
-		try {
-			HttpUtil.publishEvent(obj);
-		} catch (IOException e) {
-			modelObserver.addMessage("Server problems. Could not send event.");
-		}
+		// online und offline einer berwachung haben immer die gleiche ID, auch wenn sie wiederholt werden
+		publisher.offerStatusChange(status, EventId.of("status:" + status, session));
 	}
 
 	/**
@@ -155,7 +183,7 @@ public class Watcher extends DirectoryWatcher implements IJumpToCallBack {
 	private void checkServerStatus() throws ServerNotOnlineException {
 		log.fine("Checking server status.");
 		try {
-			int status = HttpUtil.sendGet(WatcherConfig.getInstance().getProperty(WatcherConfig.SERVER_URL) + "/ping");
+			int status = HttpUtil.sendGet(WatcherConfig.getInstance().getSnapshot().getServerUrl() + "/ping");
 			if (status != 200) {
 				throw new ServerNotOnlineException("Server not ready. Status code " + status);
 			}
@@ -186,7 +214,7 @@ public class Watcher extends DirectoryWatcher implements IJumpToCallBack {
 	 * @throws CmdrNotRegistertException wenn der User nicht registriert ist
 	 */
 	private void checkRegistration() throws CmdrNotRegistertException {
-		if (WatcherConfig.getInstance().getProperty(WatcherConfig.CMDR_ID, null) == null) {
+		if (WatcherConfig.getInstance().getSnapshot().getId() == null) {
 			throw new CmdrNotRegistertException("Commander is not registert.");
 		}
 		log.info("Commander is registert.");
@@ -206,28 +234,88 @@ public class Watcher extends DirectoryWatcher implements IJumpToCallBack {
 		checkServerStatus();
 		checkRegistration();
 		checkVerboseLogging();
+		final WatcherConfig.Snapshot config = WatcherConfig.getInstance().getSnapshot();
+		publisher.setIdentity(config.getCmdr(), config.getId());
+		WatcherConfig.getInstance().addChangeListener(this);
+		publisher.start();
+		session = System.currentTimeMillis();
 		publishStatusChange("online");
 		sendOfflineEvent = true;
 		log.info("Starting collecting footprints....");
 		modelObserver.addMessage("Starting collecting footprints....");
 		final String baseName = gameConfig.getLogFileBaseName();
+		watchedDirectory = config.getDirectoryName();
 		executor.submit(() -> {
-			startWatchDirectory(WatcherConfig.getInstance().getProperty(WatcherConfig.DIRECTORY_TO_WATCH),
-					baseName,
-					Integer.parseInt(WatcherConfig.getInstance().getProperty(WatcherConfig.FILE_SCAN_INTERVAL)));
+			startWatchDirectory(config.getDirectoryName(), baseName, config.getScanInterval(), config.getDebounceInterval());
 		});
 	}
 
+	/**
+	 * Liest alle alten Log-Files aus dem berwachten Verzeichnis ein und sendet die
+	 * darin gefundenen Sprnge in chronologischer Reihenfolge an den Server.
+	 *
+	 * @throws ServerNotOnlineException wenn der Server nicht erreichbar ist
+	 * @throws IOException wenn die Log-Files nicht gelesen werden knnen
+	 * @throws CmdrNotRegistertException wenn der User nicht registriert ist
+	 */
+	public void backfill() throws ServerNotOnlineException, IOException, CmdrNotRegistertException {
+		checkServerStatus();
+		checkRegistration();
+		log.info("Starting backfill of old log files....");
+		modelObserver.addMessage("Starting backfill of old log files....");
+		final LogBackfill backfill = new LogBackfill(WatcherConfig.getInstance().getSnapshot().getDirectoryName(),
+				gameConfig.getLogFileBaseName());
+		publisher.start();
+		final long duplicatesBefore = publisher.getDuplicateCount();
+		final int jumps;
+		try {
+			jumps = backfill.run((from, to, eventId) -> {
+				try {
+					// Beim Nachladen darf kein Sprung verloren gehen, daher auf Platz im Ausgang warten
+					publisher.putJump(from, to, eventId);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Backfill interrupted.", e);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		final long skipped = publisher.getDuplicateCount() - duplicatesBefore;
+		final String message = "Backfill finished. Queued " + (jumps - skipped) + " jumps, skipped " + skipped
+				+ " already published.";
+		log.info(message);
+		modelObserver.addMessage(message);
+	}
+
 	/**
 	 * Stoppt die berwachung
 	 */
 	public void stopWatching() {
 		log.info("Stopping watch executor");
+		WatcherConfig.getInstance().removeChangeListener(this);
 		if (sendOfflineEvent) {
 			publishStatusChange("offline");
 		}
-		super.stopWatchDirectory();
+		final boolean parseStopped = super.stopWatchDirectory();
 		executor.shutdownNow();
+		publisher.close(FLUSH_TIMEOUT);
+		if (parseStopped) {
+			parser.close();
+		} else {
+			// der Parse schreibt noch in das Journal, der State wird beim nchsten Start aus dem Journal gelesen
+			log.warning("Parse did not finish, state journal is not compacted.");
+		}
+		HttpUtil.shutdown();
+	}
+
+	/**
+	 * @return Publisher, ber den alle Events an den Server gehen, z.B. fr seine Metriken
+	 */
+	public EventPublisher getPublisher() {
+		return publisher;
 	}
 
 	/**
@@ -243,6 +331,20 @@ public class Watcher extends DirectoryWatcher implements IJumpToCallBack {
 				log.log(Level.SEVERE, "Error in loading logging configuration", exception);
 			}
 
+			if (args.length > 1 && "--backfill".equals(args[1])) {
+				try {
+					final Watcher watcher = new Watcher(args[0], new DummyObserver());
+					try {
+						watcher.backfill();
+					} finally {
+						watcher.getPublisher().close(BACKFILL_FLUSH_TIMEOUT);
+					}
+				} finally {
+					HttpUtil.shutdown();
+				}
+				return;
+			}
+
 			String file = args[0];
 			Watcher watcher = new Watcher(file, new DummyObserver());
 			boolean retry = true;
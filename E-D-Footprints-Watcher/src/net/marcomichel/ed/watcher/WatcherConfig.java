@@ -6,11 +6,27 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Config of E:D-Footprints-Watcher
+ * Config of E:D-Footprints-Watcher<p>
+ *
+ * Besides the raw properties the config publishes an immutable {@link Snapshot} with typed values. Code running
+ * per event reads the snapshot with a single volatile read instead of looking up and parsing properties.
+ * The user config file is checked for changes on disk every few seconds. A changed file is loaded into a new
+ * snapshot which replaces the old one atomically, registered {@link ChangeListener}s are informed.
  * @author Marco Michel
  *
  */
@@ -22,6 +38,13 @@ public class WatcherConfig {
 	public static final String GAME_CONFIG         	= "gameconfig";
 	public static final String DIRECTORY_TO_WATCH	= "directory";
 	public static final String FILE_SCAN_INTERVAL   = "scan-interval";
+	public static final String DEBOUNCE_INTERVAL    = "debounce-ms";
+	public static final String PUBLISH_QUEUE_SIZE   = "publish-queue-size";
+	public static final String BATCH_SIZE           = "batch-size";
+	public static final String BATCH_INTERVAL       = "batch-ms";
+	public static final String DEDUP_WINDOW         = "dedup-window";
+	public static final String TRANSPORT            = "transport";
+	public static final String HEARTBEAT_INTERVAL   = "heartbeat-ms";
 	public static final String SERVER_URL			= "server-url";
 	public static final String CMDR_NAME			= "cmdr";
 	public static final String CMDR_ID 				= "id";
@@ -29,9 +52,176 @@ public class WatcherConfig {
 
 	private static final WatcherConfig instance = new WatcherConfig();
 
-	// Config
-    private Properties config = null;
+	private static final String APPLICATION_CONFIG = "config/watcher-application.properties";
+	// wie oft das Config-File des Users auf nderungen geprft wird, in ms
+	private static final long RELOAD_INTERVAL = 2000;
+
+	/**
+	 * Immutable typed view of the config at one point in time.
+	 */
+	public static final class Snapshot {
+		private final String serverUrl;
+		private final String publishUrl;
+		private final String streamUrl;
+		private final String cmdr;
+		private final String id;
+		private final String mail;
+		private final String gameConfig;
+		private final String directoryName;
+		private final Path directory;
+		private final int scanInterval;
+		private final int debounceInterval;
+		private final int publishQueueSize;
+		private final int batchSize;
+		private final long batchInterval;
+		private final int dedupWindow;
+		private final String transport;
+		private final long heartbeatInterval;
+
+		private Snapshot(Properties config) {
+			serverUrl = config.getProperty(SERVER_URL);
+			publishUrl = serverUrl + "/publish";
+			streamUrl = serverUrl + "/stream";
+			cmdr = config.getProperty(CMDR_NAME);
+			id = config.getProperty(CMDR_ID);
+			mail = config.getProperty(CMDR_MAIL);
+			gameConfig = config.getProperty(GAME_CONFIG);
+			directoryName = config.getProperty(DIRECTORY_TO_WATCH);
+			directory = directoryName != null ? Paths.get(directoryName) : null;
+			scanInterval = intValue(config, FILE_SCAN_INTERVAL, "4");
+			debounceInterval = intValue(config, DEBOUNCE_INTERVAL, "250");
+			publishQueueSize = intValue(config, PUBLISH_QUEUE_SIZE, "10000");
+			batchSize = intValue(config, BATCH_SIZE, "50");
+			batchInterval = longValue(config, BATCH_INTERVAL, "100");
+			dedupWindow = intValue(config, DEDUP_WINDOW, "65536");
+			transport = config.getProperty(TRANSPORT, "http");
+			heartbeatInterval = longValue(config, HEARTBEAT_INTERVAL, "15000");
+		}
+
+		private static int intValue(Properties config, String key, String defaultValue) {
+			final String value = config.getProperty(key, defaultValue).trim();
+			try {
+				return Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+			}
+		}
+
+		private static long longValue(Properties config, String key, String defaultValue) {
+			final String value = config.getProperty(key, defaultValue).trim();
+			try {
+				return Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+			}
+		}
+
+		/** @return URL of the server */
+		public String getServerUrl() {
+			return serverUrl;
+		}
+
+		/** @return URL events are published to */
+		public String getPublishUrl() {
+			return publishUrl;
+		}
+
+		/** @return URL of the event stream */
+		public String getStreamUrl() {
+			return streamUrl;
+		}
+
+		/** @return name of the commander */
+		public String getCmdr() {
+			return cmdr;
+		}
+
+		/** @return id of the commander, null if not registered */
+		public String getId() {
+			return id;
+		}
+
+		/** @return mail of the commander */
+		public String getMail() {
+			return mail;
+		}
+
+		/** @return path of the game config file */
+		public String getGameConfig() {
+			return gameConfig;
+		}
+
+		/** @return directory with the log files, null if not configured */
+		public Path getDirectory() {
+			return directory;
+		}
+
+		/** @return directory with the log files as configured, the parser state stores file names in this form */
+		public String getDirectoryName() {
+			return directoryName;
+		}
+
+		/** @return longest interval in seconds the newest log file is polled */
+		public int getScanInterval() {
+			return scanInterval;
+		}
+
+		/** @return window in ms modify events are coalesced */
+		public int getDebounceInterval() {
+			return debounceInterval;
+		}
+
+		/** @return capacity of the publish queue */
+		public int getPublishQueueSize() {
+			return publishQueueSize;
+		}
+
+		/** @return maximum number of events per request */
+		public int getBatchSize() {
+			return batchSize;
+		}
+
+		/** @return time in ms events are collected for a batch */
+		public long getBatchInterval() {
+			return batchInterval;
+		}
+
+		/** @return number of event ids remembered for duplicate detection */
+		public int getDedupWindow() {
+			return dedupWindow;
+		}
+
+		/** @return true if events are sent over a stream instead of requests */
+		public boolean isStreamTransport() {
+			return "stream".equalsIgnoreCase(transport);
+		}
+
+		/** @return interval in ms a heartbeat is sent on an idle stream */
+		public long getHeartbeatInterval() {
+			return heartbeatInterval;
+		}
+	}
+
+	/**
+	 * Gets informed when a new snapshot of the config is published.
+	 */
+	public interface ChangeListener {
+		/**
+		 * @param previous snapshot before the change
+		 * @param current snapshot after the change
+		 */
+		void configChanged(Snapshot previous, Snapshot current);
+	}
+
+	// Config, wird bei nderungen als Ganzes ersetzt
+    private volatile Properties config = null;
+    private volatile Snapshot snapshot = null;
     private String userConfigFile;
+    // Stand des Config-Files des Users beim letzten Laden oder Schreiben
+    private long userConfigModified = -1;
+    private long userConfigSize = -1;
+    private ScheduledExecutorService reloader = null;
+    private final CopyOnWriteArrayList<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
 
     /**
      * @return Instance of WatcherConfig
@@ -41,37 +231,158 @@ public class WatcherConfig {
 	}
 
 	/**
-	 * Init of WatcherConfig. Must be called on Startup
+	 * Init of WatcherConfig. Must be called on Startup.
+	 * Starts checking the user config file for changes.
 	 * @param propertyFile name of the Property-File with User specific config
-	 * @throws IOException if config cannot be loaded
+	 * @throws IOException if config cannot be loaded or has invalid values
 	 */
-	public void initConfig(String propertyFile) throws IOException {
+	public synchronized void initConfig(String propertyFile) throws IOException {
     	log.info("Reading Property-File " + propertyFile);
     	userConfigFile = propertyFile;
+    	final Properties loaded = load();
+    	try {
+    		publish(loaded, new Snapshot(loaded));
+    	} catch (IllegalArgumentException e) {
+    		throw new IOException(e.getMessage(), e);
+    	}
+    	if (reloader == null) {
+    		reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+    			final Thread thread = new Thread(r, "config-reload");
+    			thread.setDaemon(true);
+    			return thread;
+    		});
+    		reloader.scheduleWithFixedDelay(this::checkForChanges, RELOAD_INTERVAL, RELOAD_INTERVAL, TimeUnit.MILLISECONDS);
+    	}
+	}
+
+	/**
+	 * Liest die Config der Application und des Users ein und merkt sich den Stand des Files des Users.
+	 */
+	private Properties load() throws IOException {
+    	final Properties loaded = new Properties();
     	// Config der Application einlesen
-    	InputStream is = new FileInputStream("config/watcher-application.properties");
-    	config = new Properties();
-    	config.load(is);
+    	try (InputStream is = new FileInputStream(APPLICATION_CONFIG)) {
+    		loaded.load(is);
+    	}
+    	// Stand vor dem Lesen merken, eine nderung whrend des Lesens wird so beim nchsten Prfen erkannt
+    	rememberUserConfigState();
     	// Config des Users einlesen
-    	try {
-        	Reader reader = new FileReader(propertyFile);
-        	config.load(reader);
+    	try (Reader reader = new FileReader(userConfigFile)) {
+        	loaded.load(reader);
 		} catch (IOException e) {
-			log.warning("No user configuration. File not found: " + propertyFile);
+			log.warning("No user configuration. File not found: " + userConfigFile);
+		}
+    	return loaded;
+	}
+
+	private void rememberUserConfigState() {
+		try {
+			final BasicFileAttributes attributes = Files.readAttributes(Paths.get(userConfigFile), BasicFileAttributes.class);
+			userConfigModified = attributes.lastModifiedTime().toMillis();
+			userConfigSize = attributes.size();
+		} catch (IOException e) {
+			userConfigModified = -1;
+			userConfigSize = -1;
 		}
 	}
 
+	/**
+	 * Prft, ob sich das Config-File des Users gendert hat und ldt es dann neu.
+	 */
+	private synchronized void checkForChanges() {
+		long modified = -1;
+		long size = -1;
+		try {
+			final BasicFileAttributes attributes = Files.readAttributes(Paths.get(userConfigFile), BasicFileAttributes.class);
+			modified = attributes.lastModifiedTime().toMillis();
+			size = attributes.size();
+		} catch (NoSuchFileException e) {
+			// wie ein leeres File behandeln
+		} catch (IOException e) {
+			log.fine("Cannot check user configuration. " + e.toString());
+			return;
+		}
+		if (modified != userConfigModified || size != userConfigSize) {
+			reload();
+		}
+	}
+
+	/**
+	 * Reloads the config from disk and publishes a new snapshot. Properties which were set but not stored are lost.
+	 * If the config cannot be loaded or has invalid values, the current config stays active.
+	 */
+	public synchronized void reload() {
+		if (config == null) {
+			throw new IllegalStateException("Config not initialized.");
+		}
+
+		try {
+			final Properties loaded = load();
+			publish(loaded, new Snapshot(loaded));
+			log.info("User configuration reloaded from " + userConfigFile);
+		} catch (IOException | IllegalArgumentException e) {
+			log.warning("Cannot reload user configuration. Keeping current configuration. " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Ersetzt Config und Snapshot und informiert die Listener.
+	 */
+	private void publish(Properties newConfig, Snapshot newSnapshot) {
+		final Snapshot previous = snapshot;
+		config = newConfig;
+		snapshot = newSnapshot;
+		if (previous != null) {
+			for (ChangeListener listener : listeners) {
+				try {
+					listener.configChanged(previous, newSnapshot);
+				} catch (RuntimeException e) {
+					log.log(Level.WARNING, "Config change listener failed.", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the current snapshot of the config. Reading it is cheap, callers should not keep it longer than
+	 * needed to see changes.
+	 * @return current snapshot
+	 */
+	public Snapshot getSnapshot() {
+		final Snapshot current = snapshot;
+		if (current == null) {
+			throw new IllegalStateException("Config not initialized.");
+		}
+
+		return current;
+	}
+
+	/**
+	 * @param listener gets informed about every new snapshot, a listener which is already registered is ignored
+	 */
+	public void addChangeListener(ChangeListener listener) {
+		listeners.addIfAbsent(listener);
+	}
+
+	/**
+	 * @param listener listener which should not be informed anymore
+	 */
+	public void removeChangeListener(ChangeListener listener) {
+		listeners.remove(listener);
+	}
+
 	/**
 	 * Returns a property of the config
 	 * @param key of the property
 	 * @return value of the property
 	 */
 	public String getProperty(String key) {
-		if (config == null) {
+		final Properties current = config;
+		if (current == null) {
 			throw new IllegalStateException("Config not initialized.");
 		}
 
-		return config.getProperty(key);
+		return current.getProperty(key);
 	}
 
 	/**
@@ -81,40 +392,55 @@ public class WatcherConfig {
 	 * @return value of the property or defaultValue
 	 */
 	public String getProperty(String key, String defaultValue) {
-		if (config == null) {
+		final Properties current = config;
+		if (current == null) {
 			throw new IllegalStateException("Config not initialized.");
 		}
 
-		return config.getProperty(key, defaultValue);
+		return current.getProperty(key, defaultValue);
 	}
 
 	/**
-	 * Sets a property in the config
+	 * Sets a property in the config and publishes a new snapshot
 	 * @param key of the property
 	 * @param value of the property
+	 * @throws IllegalArgumentException if the value is invalid for the key
 	 */
-	public void setProperty(String key, String value) {
+	public synchronized void setProperty(String key, String value) {
 		if (config == null) {
 			throw new IllegalStateException("Config not initialized.");
 		}
 
-		config.put(key, value);
+		final Properties changed = new Properties();
+		changed.putAll(config);
+		changed.put(key, value);
+		publish(changed, new Snapshot(changed));
 	}
 
 	/**
 	 * Stores the config
 	 * @throws IOException if config could not be stored
 	 */
-	public void storeConfig() throws IOException {
+	public synchronized void storeConfig() throws IOException {
 		if (config == null) {
 			throw new IllegalStateException("Config not initialized.");
 		}
 
-		FileWriter writer = new FileWriter(userConfigFile);
 		Properties userConfig = new Properties();
 		userConfig.putAll(config);
 		userConfig.remove(SERVER_URL);
 		userConfig.remove(FILE_SCAN_INTERVAL);
-		userConfig.store(writer, "User-Config of Watcher.");
+		userConfig.remove(DEBOUNCE_INTERVAL);
+		userConfig.remove(PUBLISH_QUEUE_SIZE);
+		userConfig.remove(BATCH_SIZE);
+		userConfig.remove(BATCH_INTERVAL);
+		userConfig.remove(DEDUP_WINDOW);
+		userConfig.remove(TRANSPORT);
+		userConfig.remove(HEARTBEAT_INTERVAL);
+		try (Writer writer = new FileWriter(userConfigFile)) {
+			userConfig.store(writer, "User-Config of Watcher.");
+		}
+		// das eigene Schreiben ist keine nderung, die neu geladen werden muss
+		rememberUserConfigState();
 	}
 }
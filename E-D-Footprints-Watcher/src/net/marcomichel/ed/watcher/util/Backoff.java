@@ -0,0 +1,37 @@
+package net.marcomichel.ed.watcher.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponentielles Backoff mit Jitter.<p>
+ *
+ * Die Wartezeit verdoppelt sich mit jedem Versuch bis zu einem Maximum. Davon wird eine zufllige Zeit
+ * zwischen der Hlfte und dem vollen Wert genommen, damit nicht alle Watcher nach einem Ausfall des
+ * Servers im gleichen Takt wiederkommen.
+ *
+ * @author Marco Michel
+ */
+public class Backoff {
+
+	private final long baseMillis;
+	private final long maxMillis;
+
+	/**
+	 * @param baseMillis Wartezeit vor dem ersten Wiederholen
+	 * @param maxMillis maximale Wartezeit
+	 */
+	public Backoff(long baseMillis, long maxMillis) {
+		this.baseMillis = baseMillis;
+		this.maxMillis = maxMillis;
+	}
+
+	/**
+	 * @param attempt Anzahl der bisher fehlgeschlagenen Versuche, ab 0
+	 * @return Wartezeit in ms vor dem nchsten Versuch
+	 */
+	public long delay(int attempt) {
+		final long ceiling = attempt >= 30 ? maxMillis : Math.min(maxMillis, baseMillis << attempt);
+		final long half = ceiling / 2;
+		return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+	}
+}
@@ -0,0 +1,107 @@
+package net.marcomichel.ed.watcher.util;
+
+import java.util.logging.Logger;
+
+/**
+ * Circuit Breaker fr die Requests an den Server.<p>
+ *
+ * Nach failureThreshold Fehlern in Folge geht der Breaker auf OPEN. Solange er offen ist, schlgt jeder
+ * Request sofort mit einer {@link CircuitOpenException} fehl, ohne den Server zu belasten. Nach Ablauf der
+ * Wartezeit geht er auf HALF_OPEN und lsst genau einen Request als Probe durch. Ist die Probe erfolgreich,
+ * geht er wieder auf CLOSED, sonst wieder auf OPEN mit einer lngeren Wartezeit aus dem {@link Backoff}.
+ *
+ * @author Marco Michel
+ */
+public class CircuitBreaker {
+
+	private static final Logger log = Logger.getLogger(CircuitBreaker.class.getName());
+
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private final String name;
+	private final int failureThreshold;
+	private final Backoff backoff;
+
+	private State state = State.CLOSED;
+	// Fehler in Folge im Zustand CLOSED
+	private int failures = 0;
+	// wie oft der Breaker seit dem letzten Erfolg geffnet wurde
+	private int openings = 0;
+	private long openUntil = 0;
+	private boolean probeInFlight = false;
+
+	/**
+	 * @param name Name fr das Logging
+	 * @param failureThreshold Anzahl Fehler in Folge, nach denen der Breaker ffnet
+	 * @param backoff bestimmt, wie lange der Breaker offen bleibt
+	 */
+	public CircuitBreaker(String name, int failureThreshold, Backoff backoff) {
+		this.name = name;
+		this.failureThreshold = failureThreshold;
+		this.backoff = backoff;
+	}
+
+	/**
+	 * Muss vor jedem Request aufgerufen werden. Danach muss genau einmal {@link #onSuccess()} oder
+	 * {@link #onFailure()} aufgerufen werden.
+	 *
+	 * @throws CircuitOpenException wenn der Request nicht gesendet werden darf
+	 */
+	public synchronized void acquire() throws CircuitOpenException {
+		if (state == State.OPEN) {
+			if (System.currentTimeMillis() < openUntil) {
+				throw new CircuitOpenException("Server unavailable. Circuit " + name + " open for another " + getRemainingOpenMillis() + " ms.");
+			}
+			log.info("Circuit " + name + " half open. Sending probe.");
+			state = State.HALF_OPEN;
+			probeInFlight = false;
+		}
+		if (state == State.HALF_OPEN) {
+			if (probeInFlight) {
+				throw new CircuitOpenException("Server unavailable. Circuit " + name + " waiting for probe.");
+			}
+			probeInFlight = true;
+		}
+	}
+
+	/**
+	 * Der Request war erfolgreich.
+	 */
+	public synchronized void onSuccess() {
+		if (state != State.CLOSED) {
+			log.info("Circuit " + name + " closed. Server is back.");
+		}
+		state = State.CLOSED;
+		failures = 0;
+		openings = 0;
+		probeInFlight = false;
+	}
+
+	/**
+	 * Der Request ist fehlgeschlagen.
+	 */
+	public synchronized void onFailure() {
+		if (state == State.HALF_OPEN || ++failures >= failureThreshold) {
+			final long wait = backoff.delay(openings++);
+			openUntil = System.currentTimeMillis() + wait;
+			state = State.OPEN;
+			failures = 0;
+			probeInFlight = false;
+			log.warning("Circuit " + name + " open for " + wait + " ms.");
+		}
+	}
+
+	/**
+	 * @return aktueller Zustand
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return wie lange der Breaker noch offen ist in ms, 0 wenn ein Request gesendet werden darf
+	 */
+	public synchronized long getRemainingOpenMillis() {
+		return state == State.OPEN ? Math.max(0, openUntil - System.currentTimeMillis()) : 0;
+	}
+}
@@ -0,0 +1,17 @@
+package net.marcomichel.ed.watcher.util;
+
+import java.io.IOException;
+
+/**
+ * Wird geworfen, wenn ein Request nicht gesendet wird, weil der {@link CircuitBreaker} offen ist.
+ *
+ * @author Marco Michel
+ */
+public class CircuitOpenException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public CircuitOpenException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,155 @@
+package net.marcomichel.ed.watcher.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+import net.marcomichel.ed.util.LongHashSet;
+
+/**
+ * Merkt sich die IDs der letzten Events, um Duplikate zu erkennen.<p>
+ *
+ * Die IDs liegen in einem Ring fester Gre und zustzlich in einem {@link LongHashSet} fr die Suche.
+ * Ist der Ring voll, fllt die lteste ID heraus. Der Ring wird in einem File gespiegelt, damit Duplikate auch
+ * nach einem Neustart erkannt werden, z.B. wenn nach dem Verlust des State alte Sprnge erneut gemeldet werden.<p>
+ *
+ * Aufbau des Files: 8 Bytes mit der Kapazitt, 8 Bytes mit der Anzahl aller bisher gemerkten IDs, danach bis
+ * zu capacity Pltze mit je 8 Bytes. Pltze hinter dem Ende des Files sind noch frei.
+ * Jedes {@link #add(long)} schreibt nur den Platz und den Zhler, ohne force. Geht dabei nach einem Absturz
+ * etwas verloren, wird hchstens ein Duplikat nicht erkannt.<p>
+ *
+ * Die Klasse ist thread-safe.
+ *
+ * @author Marco Michel
+ */
+public class DedupWindow implements Closeable {
+
+	private static final Logger log = Logger.getLogger(DedupWindow.class.getName());
+
+	private static final int HEADER_BYTES = 16;
+	private static final int COUNT_POSITION = 8;
+
+	private final long[] ring;
+	private final LongHashSet ids;
+	private final FileChannel channel;
+	private final ByteBuffer slotBuffer = ByteBuffer.allocate(8);
+	private long count = 0;
+
+	/**
+	 * @param capacity Anzahl der IDs, die sich gemerkt werden
+	 * @param file File, in dem der Ring gespiegelt wird, null fr einen Ring nur im Speicher
+	 * @throws IOException wenn das File nicht geffnet werden kann
+	 */
+	public DedupWindow(int capacity, String file) throws IOException {
+		ring = new long[Math.max(1, capacity)];
+		ids = new LongHashSet(ring.length);
+		if (file == null) {
+			channel = null;
+			return;
+		}
+		final Path path = Paths.get(file);
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		final long size = channel.size();
+		if (size >= HEADER_BYTES && size <= HEADER_BYTES + ring.length * 8L && readLong(0) == ring.length) {
+			load(size);
+		} else {
+			if (size > 0) {
+				log.info("Size of dedup window changed. Starting with an empty window.");
+			}
+			channel.truncate(0);
+			writeLong(0, ring.length);
+			writeLong(COUNT_POSITION, 0);
+		}
+	}
+
+	private void load(long size) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+		while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+			// weiter lesen
+		}
+		buffer.flip();
+		buffer.position(COUNT_POSITION);
+		count = Math.max(0, buffer.getLong());
+		final int used = (int) Math.min(count, (size - HEADER_BYTES) / 8);
+		for (int i = 0; i < used; i++) {
+			ring[i] = buffer.getLong();
+			if (ring[i] != 0) {
+				ids.add(ring[i]);
+			}
+		}
+		log.info("Loaded " + ids.size() + " event ids into dedup window.");
+	}
+
+	/**
+	 * @param id ID eines Events, nicht 0
+	 * @return true, wenn die ID im Fenster ist, das Event also schon einmal verarbeitet wurde
+	 */
+	public synchronized boolean contains(long id) {
+		return ids.contains(id);
+	}
+
+	/**
+	 * Merkt sich eine ID. Ist das Fenster voll, wird die lteste ID vergessen.
+	 *
+	 * @param id ID eines Events, nicht 0
+	 * @return false, wenn die ID schon im Fenster war
+	 */
+	public synchronized boolean add(long id) {
+		if (!ids.add(id)) {
+			return false;
+		}
+		final int slot = (int) (count % ring.length);
+		if (count >= ring.length) {
+			ids.remove(ring[slot]);
+		}
+		ring[slot] = id;
+		count++;
+		if (channel != null) {
+			try {
+				writeLong(HEADER_BYTES + slot * 8L, id);
+				writeLong(COUNT_POSITION, count);
+			} catch (IOException e) {
+				log.warning("Cannot write dedup window. " + e.toString());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Anzahl der IDs im Fenster
+	 */
+	public synchronized int size() {
+		return ids.size();
+	}
+
+	private long readLong(long position) throws IOException {
+		slotBuffer.clear();
+		while (slotBuffer.hasRemaining() && channel.read(slotBuffer, position + slotBuffer.position()) > 0) {
+			// weiter lesen
+		}
+		return slotBuffer.hasRemaining() ? -1 : slotBuffer.getLong(0);
+	}
+
+	private void writeLong(long position, long value) throws IOException {
+		slotBuffer.clear();
+		slotBuffer.putLong(value).flip();
+		while (slotBuffer.hasRemaining()) {
+			channel.write(slotBuffer, position + slotBuffer.position());
+		}
+	}
+
+	/**
+	 * Schliet das File.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel != null && channel.isOpen()) {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,342 @@
+package net.marcomichel.ed.watcher.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Schickt Events ber eine dauerhafte Verbindung an den Server, statt mit einem Request pro Event.<p>
+ *
+ * Auf einer Verbindung luft ein einziger Request POST /stream mit Transfer-Encoding chunked, der nie endet.
+ * Jedes Event ist eine Zeile JSON (NDJSON), ein Aufruf von {@link #publish(List)} schickt alle Zeilen in einem
+ * Chunk. Der Server antwortet auf derselben Verbindung mit einer chunked Response, in der jede Zeile des Requests
+ * mit einer Zeile besttigt wird: "ok" oder "error" mit einem Grund. {@link #publish(List)} kehrt erst zurck,
+ * wenn alle Zeilen besttigt sind.<p>
+ *
+ * Ist die Verbindung heartbeatMillis lang unbenutzt, wird eine leere Zeile als Heartbeat geschickt, die ebenfalls
+ * besttigt wird. So bleibt die Verbindung durch Proxies und NAT offen und eine tote Verbindung fllt auf, bevor
+ * das nchste Event kommt. Bei jedem Fehler wird die Verbindung geschlossen und beim nchsten Event neu aufgebaut.<p>
+ *
+ * Antwortet der Server auf /stream mit einem Client-Fehler (4xx), kann er kein Streaming. Dann liefert
+ * {@link #publish(List)} false und der Aufrufer muss die Events mit normalen Requests schicken.
+ *
+ * @author Marco Michel
+ */
+public class EventStream implements Closeable {
+
+	private static final Logger log = Logger.getLogger(EventStream.class.getName());
+
+	private static final int CONNECT_TIMEOUT = 5000;
+	// wie lange maximal auf die Besttigung gewartet wird
+	private static final int ACK_TIMEOUT     = 10000;
+	private static final byte[] CRLF         = { '\r', '\n' };
+	private static final byte[] LAST_CHUNK   = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	private final URL url;
+	private final long heartbeatMillis;
+	private volatile boolean supported = true;
+
+	private Socket socket = null;
+	private OutputStream out;
+	private InputStream in;
+	// noch zu lesende Bytes im aktuellen Chunk der Response
+	private int chunkRemaining = 0;
+	// nach den Daten eines Chunks steht noch ein CRLF
+	private boolean chunkOpen = false;
+	private long lastActivity = 0;
+	private ScheduledExecutorService heartbeat = null;
+
+	// wiederverwendete Puffer
+	private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(4096);
+	private final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+
+	/**
+	 * @param url URL des Streams, z.B. http://localhost:9080/stream
+	 * @param heartbeatMillis nach wie vielen ms ohne Event ein Heartbeat geschickt wird
+	 * @throws MalformedURLException wenn die URL ungltig ist
+	 */
+	public EventStream(String url, long heartbeatMillis) throws MalformedURLException {
+		this.url = new URL(url);
+		this.heartbeatMillis = heartbeatMillis;
+	}
+
+	/**
+	 * @return false, wenn der Server kein Streaming kann
+	 */
+	public boolean isSupported() {
+		return supported;
+	}
+
+	/**
+	 * @return true, wenn gerade eine Verbindung offen ist
+	 */
+	public synchronized boolean isConnected() {
+		return socket != null;
+	}
+
+	/**
+	 * Schickt Events und wartet, bis der Server alle besttigt hat. Baut die Verbindung bei Bedarf auf.
+	 *
+	 * @param events die Events als JSON, in der Reihenfolge, in der sie aufgetreten sind
+	 * @return true, wenn alle Events besttigt wurden, false wenn der Server kein Streaming kann
+	 * @throws IOException wenn die Verbindung gestrt ist oder der Server ein Event nicht angenommen hat
+	 */
+	public synchronized boolean publish(List<String> events) throws IOException {
+		if (!supported) {
+			return false;
+		}
+		if (socket == null && !connect()) {
+			return false;
+		}
+		chunk.reset();
+		for (String event : events) {
+			final byte[] bytes = event.getBytes(StandardCharsets.UTF_8);
+			chunk.write(bytes, 0, bytes.length);
+			chunk.write('\n');
+		}
+		final String error;
+		try {
+			writeChunk();
+			error = readAcks(events.size());
+		} catch (IOException e) {
+			disconnect();
+			throw e;
+		}
+		if (error != null) {
+			// die Verbindung ist in Ordnung und bleibt offen
+			throw new IOException("Server error on stream: " + error);
+		}
+		log.finer("Stream acknowledged " + events.size() + " events");
+		return true;
+	}
+
+	/**
+	 * ffnet die Verbindung und beginnt den Request.
+	 *
+	 * @return false, wenn der Server kein Streaming kann
+	 */
+	private boolean connect() throws IOException {
+		final boolean https = "https".equalsIgnoreCase(url.getProtocol());
+		final int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+		final Socket s = https ? SSLSocketFactory.getDefault().createSocket() : new Socket();
+		try {
+			s.connect(new InetSocketAddress(url.getHost(), port), CONNECT_TIMEOUT);
+			s.setSoTimeout(ACK_TIMEOUT);
+			s.setTcpNoDelay(true);
+			s.setKeepAlive(true);
+			out = new BufferedOutputStream(s.getOutputStream(), 8192);
+			in = new BufferedInputStream(s.getInputStream(), 8192);
+
+			final String request = "POST " + url.getFile() + " HTTP/1.1\r\n"
+					+ "Host: " + url.getHost() + (url.getPort() != -1 ? ":" + url.getPort() : "") + "\r\n"
+					+ "Content-Type: application/x-ndjson; charset=UTF-8\r\n"
+					+ "Transfer-Encoding: chunked\r\n"
+					+ "Connection: close\r\n\r\n";
+			out.write(request.getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+
+			// Der Server antwortet sofort mit den Headern, der Body der Response sind die Besttigungen
+			final String statusLine = readHeaderLine();
+			final int status = statusLine.startsWith("HTTP/") && statusLine.length() >= 12 ? parseInt(statusLine.substring(9, 12), 10) : -1;
+			boolean chunked = false;
+			String header;
+			while (!(header = readHeaderLine()).isEmpty()) {
+				if (header.toLowerCase().startsWith("transfer-encoding:") && header.toLowerCase().contains("chunked")) {
+					chunked = true;
+				}
+			}
+			if (status >= 400 && status < 500) {
+				log.warning("Server does not support streaming. Status code " + status + ". Sending requests from now on.");
+				supported = false;
+				s.close();
+				return false;
+			}
+			if (status != 200 || !chunked) {
+				throw new IOException("Cannot open stream. Status code " + status);
+			}
+		} catch (IOException | RuntimeException e) {
+			s.close();
+			throw e;
+		}
+		socket = s;
+		chunkRemaining = 0;
+		chunkOpen = false;
+		lastActivity = System.currentTimeMillis();
+		startHeartbeat();
+		log.info("Stream to " + url + " open.");
+		return true;
+	}
+
+	private void startHeartbeat() {
+		if (heartbeat == null && heartbeatMillis > 0) {
+			heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+				final Thread thread = new Thread(r, "event-stream-heartbeat");
+				thread.setDaemon(true);
+				return thread;
+			});
+			heartbeat.scheduleWithFixedDelay(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Schickt einen Heartbeat, wenn die Verbindung offen ist und lnger nicht benutzt wurde.
+	 */
+	private synchronized void heartbeat() {
+		if (socket == null || System.currentTimeMillis() - lastActivity < heartbeatMillis) {
+			return;
+		}
+		chunk.reset();
+		chunk.write('\n');
+		try {
+			writeChunk();
+			final String error = readAcks(1);
+			log.finer("Stream heartbeat acknowledged" + (error != null ? " with " + error : ""));
+		} catch (IOException e) {
+			log.info("Stream heartbeat failed. Reconnecting with next event. " + e.toString());
+			disconnect();
+		}
+	}
+
+	/**
+	 * Schreibt den Inhalt von chunk als einen Chunk des Requests.
+	 */
+	private void writeChunk() throws IOException {
+		out.write(Integer.toHexString(chunk.size()).getBytes(StandardCharsets.US_ASCII));
+		out.write(CRLF);
+		chunk.writeTo(out);
+		out.write(CRLF);
+		out.flush();
+	}
+
+	/**
+	 * Liest die Besttigungen fr count Zeilen. Auch nach einem Fehler werden alle gelesen, damit Request
+	 * und Response im Takt bleiben.
+	 *
+	 * @return die erste Besttigung, die nicht "ok" ist, null wenn alle Zeilen angenommen wurden
+	 * @throws IOException wenn die Besttigungen nicht gelesen werden konnten
+	 */
+	private String readAcks(int count) throws IOException {
+		String error = null;
+		for (int i = 0; i < count; i++) {
+			final String ack = readAckLine();
+			if (!"ok".equals(ack) && error == null) {
+				error = ack;
+			}
+		}
+		lastActivity = System.currentTimeMillis();
+		return error;
+	}
+
+	/**
+	 * Liest eine Zeile aus dem chunked Body der Response.
+	 */
+	private String readAckLine() throws IOException {
+		line.reset();
+		int b;
+		while ((b = readBodyByte()) != '\n') {
+			if (b == -1) {
+				throw new EOFException("Stream closed by server.");
+			}
+			line.write(b);
+		}
+		final String ack = new String(line.toByteArray(), StandardCharsets.UTF_8);
+		return ack.endsWith("\r") ? ack.substring(0, ack.length() - 1) : ack;
+	}
+
+	/**
+	 * @return nchstes Byte aus dem chunked Body, -1 am Ende der Response
+	 */
+	private int readBodyByte() throws IOException {
+		if (chunkRemaining == 0) {
+			if (chunkOpen) {
+				readHeaderLine();
+			}
+			final String size = readHeaderLine();
+			final int extension = size.indexOf(';');
+			chunkRemaining = parseInt((extension >= 0 ? size.substring(0, extension) : size).trim(), 16);
+			chunkOpen = true;
+			if (chunkRemaining == 0) {
+				return -1;
+			}
+		}
+		final int b = in.read();
+		if (b == -1) {
+			throw new EOFException("Stream closed by server.");
+		}
+		chunkRemaining--;
+		return b;
+	}
+
+	/**
+	 * Liest eine Zeile aus Headern oder Chunk-Gren bis CRLF.
+	 */
+	private String readHeaderLine() throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b == -1) {
+				throw new EOFException("Stream closed by server.");
+			}
+			if (b != '\r') {
+				sb.append((char) b);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static int parseInt(String s, int radix) throws IOException {
+		try {
+			return Integer.parseInt(s, radix);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid response on stream: " + s);
+		}
+	}
+
+	private void disconnect() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				log.fine("Cannot close stream socket. " + e.toString());
+			}
+			socket = null;
+		}
+	}
+
+	/**
+	 * Beendet den Request ordentlich und schliet die Verbindung.
+	 */
+	@Override
+	public synchronized void close() {
+		if (heartbeat != null) {
+			heartbeat.shutdownNow();
+			heartbeat = null;
+		}
+		if (socket != null) {
+			try {
+				out.write(LAST_CHUNK);
+				out.flush();
+			} catch (IOException e) {
+				log.fine("Cannot end stream. " + e.toString());
+			}
+			disconnect();
+		}
+	}
+}
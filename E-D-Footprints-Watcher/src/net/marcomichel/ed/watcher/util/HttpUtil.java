@@ -1,27 +1,159 @@
 package net.marcomichel.ed.watcher.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
 import org.json.simple.JSONObject;
 
 import net.marcomichel.ed.watcher.WatcherConfig;
 
+/**
+ * Kommunikation mit dem E:D-Footprints Server.<p>
+ *
+ * Alle Requests laufen ber einen gemeinsamen HttpClient mit einem Pool von Keep-Alive Verbindungen,
+ * damit nicht jedes Event eine neue TCP-Verbindung aufbauen muss. Der Client wird beim ersten Request
+ * angelegt und muss beim Beenden mit {@link #shutdown()} geschlossen werden.<p>
+ *
+ * Alle Requests gehen durch einen gemeinsamen {@link CircuitBreaker}. Ist der Server nicht erreichbar, schlagen
+ * Requests sofort mit einer {@link CircuitOpenException} fehl, bis eine Probe zeigt, dass er wieder da ist.<p>
+ *
+ * Ist in der Config transport=stream gesetzt, gehen Events ber einen {@link EventStream} statt mit einem
+ * Request pro Event oder Batch. Kann der Server kein Streaming, werden wieder Requests geschickt.
+ *
+ * @author Marco Michel
+ */
 public abstract class HttpUtil {
 
 	private static final Logger log = Logger.getLogger(HttpUtil.class.getName());
 
+	// maximale Anzahl gleichzeitiger Verbindungen zum Server
+	private static final int MAX_CONNECTIONS       = 4;
+	// Timeouts in ms
+	private static final int CONNECT_TIMEOUT       = 5000;
+	private static final int SOCKET_TIMEOUT        = 10000;
+	// nach wie vielen Sekunden eine unbenutzte Verbindung geschlossen wird
+	private static final long IDLE_TIMEOUT_SECONDS = 60;
+
+	// gemeinsamer Client fr alle Requests
+	private static CloseableHttpClient httpClient = null;
+	// Anzahl Versuche fr ein einzelnes Event
+	private static final int MAX_ATTEMPTS          = 3;
+	// Wartezeit zwischen den Versuchen fr ein einzelnes Event
+	private static final Backoff RETRY_BACKOFF     = new Backoff(1000, 8000);
+	// gemeinsamer Breaker fr alle Requests an den Server
+	private static final CircuitBreaker breaker    = new CircuitBreaker("server", 3, new Backoff(2000, 120000));
+
+	// maximale Gre einer Response
+	static final int MAX_RESPONSE_BYTES            = 1024 * 1024;
+	// Puffer fr die Responses, wchst bei Bedarf bis MAX_RESPONSE_BYTES + 1
+	private static final ThreadLocal<byte[]> responseBuffer = ThreadLocal.withInitial(() -> new byte[8192]);
+
+	// false, sobald der Server einen Batch abgelehnt hat
+	private static volatile boolean batchSupported = true;
+	// Stream fr die Events, wenn er konfiguriert ist
+	private static EventStream eventStream = null;
+	// Config, mit der der Stream angelegt wurde
+	private static WatcherConfig.Snapshot streamConfig = null;
+
+	/**
+	 * @return den gemeinsamen HttpClient, wird beim ersten Aufruf angelegt
+	 */
+	private static synchronized CloseableHttpClient getClient() {
+		if (httpClient == null) {
+			log.fine("Creating pooled http client");
+			final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+			connectionManager.setMaxTotal(MAX_CONNECTIONS);
+			connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+			httpClient = HttpClients.custom()
+					.setConnectionManager(connectionManager)
+					.setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+					.setDefaultRequestConfig(RequestConfig.custom()
+							.setConnectTimeout(CONNECT_TIMEOUT)
+							.setSocketTimeout(SOCKET_TIMEOUT)
+							.build())
+					.evictExpiredConnections()
+					.evictIdleConnections(IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+					.build();
+		}
+		return httpClient;
+	}
+
+	/**
+	 * @return der gemeinsame Breaker fr alle Requests an den Server
+	 */
+	public static CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	/**
+	 * Fhrt einen Request ber den Breaker aus. Verbindungsfehler und Server-Fehler (5xx) zhlen als Fehler.
+	 *
+	 * @param request der Request
+	 * @return die Response, muss vom Aufrufer geschlossen werden
+	 * @throws CircuitOpenException wenn der Breaker offen ist
+	 * @throws IOException wenn der Request nicht gesendet werden konnte
+	 */
+	private static CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+		breaker.acquire();
+		final CloseableHttpResponse response;
+		try {
+			response = getClient().execute(request);
+		} catch (IOException | RuntimeException e) {
+			breaker.onFailure();
+			throw e;
+		}
+		if (response.getStatusLine().getStatusCode() >= 500) {
+			breaker.onFailure();
+		} else {
+			breaker.onSuccess();
+		}
+		return response;
+	}
+
+	/**
+	 * Schliet den gemeinsamen HttpClient und alle offenen Verbindungen.
+	 */
+	public static synchronized void shutdown() {
+		if (eventStream != null) {
+			eventStream.close();
+			eventStream = null;
+		}
+		if (httpClient != null) {
+			try {
+				httpClient.close();
+			} catch (IOException e) {
+				log.warning("Cannot close http client. " + e.toString());
+			}
+			httpClient = null;
+		}
+	}
+
 	/**
 	 * Sendet ein HTTP-GET an den E:D-Footprints Server
 	 *
@@ -31,13 +163,14 @@ public abstract class HttpUtil {
 	 */
 	public static int sendGet(String url) throws IOException {
 		log.fine("Sending Query to " + url);
-		CloseableHttpClient httpClient = HttpClients.createDefault();
 		HttpGet httpGet = new HttpGet(url);
-		CloseableHttpResponse response = httpClient.execute(httpGet);
+		CloseableHttpResponse response = execute(httpGet);
 		int statusCode = -1;
 		try {
 	        statusCode = response.getStatusLine().getStatusCode();
 	        log.finer("Response is " + statusCode);
+	        // Body lesen, damit die Verbindung wieder verwendet werden kann
+	        EntityUtils.consume(response.getEntity());
 		} finally {
 			response.close();
 		}
@@ -52,25 +185,197 @@ public abstract class HttpUtil {
 	 * @throws IOException
 	 */
     public static final String sendPost(JSONObject json, String url) throws IOException {
-    	final String body = json.toJSONString();
+    	return sendPost(json.toJSONString(), url);
+    }
+
+	/**
+	 * Sendet ein HTTP-POST mit einem bereits serialisierten JSON-Body an den E:D-Footprints Server.
+	 *
+	 * @param body JSON, das gesendet werden soll
+	 * @param url URL die aufgerufen werden soll
+	 * @return Body der Response
+	 * @throws IOException wenn der Request nicht gesendet werden konnte oder der Server einen Fehler (5xx) meldet
+	 */
+    public static final String sendPost(String body, String url) throws IOException {
     	log.fine("Sending " + body);
-    	HttpClient httpClient = new DefaultHttpClient();
     	HttpPost httpPost = new HttpPost(url);
 
-		StringEntity stringEntity = new StringEntity(body);
+		// UTF-8 wie bei Batches und Stream, sonst werden Namen auerhalb von Latin-1 zu ?
+		StringEntity stringEntity = new StringEntity(body, ContentType.APPLICATION_JSON);
         httpPost.setEntity(stringEntity);
-        httpPost.setHeader("Content-type", "application/json");
-        HttpResponse response = httpClient.execute(httpPost);
-        int statusCode = response.getStatusLine().getStatusCode();
-        log.finer("Response is " + statusCode);
-        InputStream is = response.getEntity().getContent();
-        int ch;
-        StringBuilder sb = new StringBuilder();
-        while ((ch = is.read()) != -1)
-        	sb.append((char)ch);
-        return sb.toString();
+        CloseableHttpResponse response = execute(httpPost);
+        try {
+	        int statusCode = response.getStatusLine().getStatusCode();
+	        log.finer("Response is " + statusCode);
+	        final String answer = readBody(response.getEntity());
+	        if (statusCode >= 500) {
+	        	throw new IOException("Server error. Status code " + statusCode);
+	        }
+	        return answer;
+        } finally {
+        	response.close();
+        }
     }
 
+	/**
+	 * Liest den Body einer Response blockweise in einen wiederverwendbaren Puffer des Threads.<p>
+	 *
+	 * Der Body wird mit dem Charset aus dem Content-Type dekodiert, ohne Angabe als UTF-8.
+	 * Ist er grer als {@link #MAX_RESPONSE_BYTES}, wird eine IOException geworfen.
+	 *
+	 * @param entity Body der Response, darf null sein
+	 * @return der Body, "" wenn es keinen gibt
+	 * @throws IOException wenn der Body nicht gelesen werden konnte oder zu gro ist
+	 */
+	static String readBody(HttpEntity entity) throws IOException {
+		if (entity == null) {
+			return "";
+		}
+		if (entity.getContentLength() > MAX_RESPONSE_BYTES) {
+			EntityUtils.consumeQuietly(entity);
+			throw new IOException("Response too large: " + entity.getContentLength() + " bytes");
+		}
+		final ContentType contentType = ContentType.getLenient(entity);
+		final Charset charset = contentType != null && contentType.getCharset() != null ? contentType.getCharset() : StandardCharsets.UTF_8;
+
+		byte[] buffer = responseBuffer.get();
+		int length = 0;
+		try (InputStream is = entity.getContent()) {
+			int read;
+			while ((read = is.read(buffer, length, buffer.length - length)) != -1) {
+				length += read;
+				if (length == buffer.length) {
+					if (length > MAX_RESPONSE_BYTES) {
+						throw new IOException("Response too large: more than " + MAX_RESPONSE_BYTES + " bytes");
+					}
+					// ein Byte mehr als erlaubt, damit ein zu groer Body erkannt wird
+					buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, MAX_RESPONSE_BYTES + 1));
+					responseBuffer.set(buffer);
+				}
+			}
+		}
+		return new String(buffer, 0, length, charset);
+	}
+
+	/**
+	 * Publiziert mehrere Events mit einem Request an den Server.<p>
+	 *
+	 * Die Events werden als JSON-Array gzip-komprimiert an /publish geschickt. Lehnt der Server das mit einem
+	 * Client-Fehler (4xx) ab, werden fr den Rest der Laufzeit keine Batches mehr geschickt und immer false
+	 * zurckgegeben. Der Aufrufer muss die Events dann einzeln mit {@link #publishEvent(String)} senden.
+	 * Ist ein Stream konfiguriert, gehen die Events stattdessen in einem Chunk ber den Stream.
+	 *
+	 * @param events die Events als JSON in der Reihenfolge, in der sie aufgetreten sind
+	 * @return true, wenn der Server den Batch angenommen hat
+	 * @throws IOException wenn der Batch nicht gesendet werden konnte oder der Server einen Fehler gemeldet hat
+	 */
+	public static boolean publishBatch(List<String> events) throws IOException {
+		if (publishStream(events)) {
+			log.info("sending batch of " + events.size() + " events over stream");
+			return true;
+		}
+		if (!batchSupported) {
+			return false;
+		}
+		int length = 2;
+		for (String event : events) {
+			length += event.length() + 1;
+		}
+		final StringBuilder batch = new StringBuilder(length).append('[');
+		for (int i = 0; i < events.size(); i++) {
+			if (i > 0) {
+				batch.append(',');
+			}
+			batch.append(events.get(i));
+		}
+		batch.append(']');
+		final int status = sendGzipPost(batch.toString(), WatcherConfig.getInstance().getSnapshot().getPublishUrl());
+		if (status >= 400 && status < 500) {
+			log.warning("Server does not accept batches. Status code " + status + ". Sending single events from now on.");
+			batchSupported = false;
+			return false;
+		}
+		if (status >= 500) {
+			throw new IOException("Server error on batch. Status code " + status);
+		}
+		log.info("sending batch of " + events.size() + " events");
+		return true;
+	}
+
+	/**
+	 * Sendet einen JSON-Body gzip-komprimiert als HTTP-POST.
+	 *
+	 * @param body JSON, wird als UTF-8 kodiert
+	 * @param url URL die aufgerufen werden soll
+	 * @return HTTP Status-Code der Response
+	 * @throws IOException
+	 */
+	private static int sendGzipPost(String body, String url) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length() / 4 + 64);
+		try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(bytes), StandardCharsets.UTF_8)) {
+			writer.write(body);
+		}
+		log.fine("Sending " + body.length() + " chars as " + bytes.size() + " gzip bytes");
+
+		final HttpPost httpPost = new HttpPost(url);
+		final ByteArrayEntity entity = new ByteArrayEntity(bytes.toByteArray(), ContentType.APPLICATION_JSON);
+		entity.setContentEncoding("gzip");
+		httpPost.setEntity(entity);
+		final CloseableHttpResponse response = execute(httpPost);
+		try {
+			final int statusCode = response.getStatusLine().getStatusCode();
+			final String ack = readBody(response.getEntity());
+			log.finer("Response is " + statusCode + " " + ack);
+			return statusCode;
+		} finally {
+			response.close();
+		}
+	}
+
+	/**
+	 * @return den Stream fr die Events, null wenn keiner konfiguriert ist oder der Server kein Streaming kann
+	 */
+	private static synchronized EventStream getStream() throws IOException {
+		final WatcherConfig.Snapshot config = WatcherConfig.getInstance().getSnapshot();
+		if (config != streamConfig) {
+			// Config wurde gendert, der Stream passt evtl. nicht mehr dazu
+			if (eventStream != null && (!config.isStreamTransport() || !config.getStreamUrl().equals(streamConfig.getStreamUrl())
+					|| config.getHeartbeatInterval() != streamConfig.getHeartbeatInterval())) {
+				eventStream.close();
+				eventStream = null;
+			}
+			streamConfig = config;
+		}
+		if (eventStream == null && config.isStreamTransport()) {
+			eventStream = new EventStream(config.getStreamUrl(), config.getHeartbeatInterval());
+		}
+		return eventStream != null && eventStream.isSupported() ? eventStream : null;
+	}
+
+	/**
+	 * Schickt Events ber den Stream, wenn einer konfiguriert ist. Geht wie ein Request durch den Breaker.
+	 *
+	 * @param events die Events als JSON
+	 * @return false, wenn kein Stream konfiguriert ist oder der Server kein Streaming kann
+	 * @throws IOException wenn die Events nicht ber den Stream geschickt werden konnten
+	 */
+	private static boolean publishStream(List<String> events) throws IOException {
+		final EventStream stream = getStream();
+		if (stream == null) {
+			return false;
+		}
+		breaker.acquire();
+		final boolean published;
+		try {
+			published = stream.publish(events);
+		} catch (IOException | RuntimeException e) {
+			breaker.onFailure();
+			throw e;
+		}
+		breaker.onSuccess();
+		return published;
+	}
+
     /**
      * Publiziert ein Event an den Server.
      *
@@ -78,28 +383,45 @@ public abstract class HttpUtil {
      * @throws IOException if event could not be published
      */
 	public static void publishEvent(JSONObject event) throws IOException {
-		boolean success = false;
-		int retry = 0;
-		while (!success && retry<3) {
+		publishEvent(event.toJSONString());
+	}
+
+    /**
+     * Publiziert ein bereits serialisiertes Event an den Server.
+     *
+     * @param event the event to be published as JSON
+     * @throws IOException if event could not be published
+     */
+	public static void publishEvent(String event) throws IOException {
+		final String url = WatcherConfig.getInstance().getSnapshot().getPublishUrl();
+		for (int attempt = 0; ; attempt++) {
 			try {
-				HttpUtil.sendPost(event, WatcherConfig.getInstance().getProperty(WatcherConfig.SERVER_URL) + "/publish");
-				success = true;
-				log.info("sending event");
+				if (publishStream(Collections.singletonList(event))) {
+					log.info("sending event over stream");
+				} else {
+					HttpUtil.sendPost(event, url);
+					log.info("sending event");
+				}
+				return;
+			} catch (CircuitOpenException e) {
+				// Server ist nicht erreichbar, weitere Versuche sind sinnlos
+				log.info(e.getMessage());
+				throw e;
 			} catch (IOException e) {
 				log.log(Level.SEVERE, "Could not send event to server. " + e.toString(), e);
-				retry++;
-				if (retry<3) {
-					log.info("Retrying after 2 seconds....");
-					try {
-						Thread.sleep(2000);
-					} catch (InterruptedException e1) {
-						log.warning(e1.toString());
-					}
-				} else {
+				if (attempt + 1 >= MAX_ATTEMPTS) {
 					log.info("Could not send event. No more retrys for this event.");
-					throw new IOException("Server problems. Could not send event.");
+					throw new IOException("Server problems. Could not send event.", e);
 				}
 			}
+			final long delay = RETRY_BACKOFF.delay(attempt);
+			log.info("Retrying after " + delay + " ms....");
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for retry.", e);
+			}
 		}
 	}
 